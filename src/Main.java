@@ -1,9 +1,77 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.random.RandomGenerator;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * Artificial Life Simulation - single-file Java 25 implementation
@@ -13,6 +81,9 @@ public class Main extends JFrame {
 
     // ==== DEFAULT SIMULATION CONSTANTS (по умолчанию) ====
     private static final int DEFAULT_GRID_SIZE = 20;
+    private static final int MIN_WORLD_SIDE = 3;
+    private static final int MAX_WORLD_SIDE = 100_000;
+    private static final int COMPACT_INTERVAL = 256;  // ticks between frees of emptied grid chunks
     private static final int DEFAULT_INITIAL_HERBIVORES = 22;
     private static final int DEFAULT_INITIAL_CARNIVORES = 5;
     private static final int DEFAULT_INITIAL_PLANTS = 90;
@@ -25,20 +96,26 @@ public class Main extends JFrame {
     private static final int DEFAULT_INITIAL_ENERGY_CARN = 90;
 
     private static final double REPRODUCTION_THRESHOLD = 0.9; // 90% of max energy
+    private static final double DEFAULT_MUTATION_STD = 0.05;
+    private static final int ENERGY_BINS = 10;   // energy histogram: tenths of an agent's max energy
 
     // NN model
-    private static final int NN_INPUTS = 14;
     private static final int NN_OUTPUTS = 4;
 
     // UI
     private static final int CELL_SIZE = 30;
-    private static final int MIN_DELAY = 20;     // fastest speed (ms)
+    private static final int MIN_DELAY = 0;      // fastest speed (ms): as fast as the simulation thread can go
     private static final int MAX_DELAY = 500;    // slowest speed (ms)
     private static final int DEFAULT_DELAY = 120;
+    private static final int MAX_VIEW_WIDTH = 960;   // larger worlds are shown through a zoomable viewport
+    private static final int MAX_VIEW_HEIGHT = 720;
+    private static final double ZOOM_STEP = 1.25;
+    private static final long MAX_PAINTED_CELLS = 1 << 22;  // larger worlds run with statistics only
 
     // Конфиг, который можно менять через UI
     private static class SimConfig {
-        int gridSize;
+        int width;
+        int height;
         int initialHerbivores;
         int initialCarnivores;
         int initialPlants;
@@ -47,6 +124,71 @@ public class Main extends JFrame {
         int baseMaxEnergyCarn;
         int initialEnergyHerb;
         int initialEnergyCarn;
+        long seed;
+        StepMode stepMode = StepMode.SEQUENTIAL;
+        int threads = 1;
+        int decisionBatch = 0;  // > 1: agents of a block all sense before any of them acts
+        double mutationStd = DEFAULT_MUTATION_STD;  // 0: children share the parent's brain
+        double mutationRate = 1;                     // share of parameters a birth mutates; < 1: sparse
+        PlantGrowth plantGrowth = PlantGrowth.SKIP;
+        String sensors = "classic";  // SensorLayout spec
+        boolean memoize;             // reuse decisions of agents whose surroundings did not change
+        AgentStore agentStore = AgentStore.HEAP;
+
+        static SimConfig defaults() {
+            SimConfig c = new SimConfig();
+            c.width = DEFAULT_GRID_SIZE;
+            c.height = DEFAULT_GRID_SIZE;
+            c.initialHerbivores = DEFAULT_INITIAL_HERBIVORES;
+            c.initialCarnivores = DEFAULT_INITIAL_CARNIVORES;
+            c.initialPlants = DEFAULT_INITIAL_PLANTS;
+            c.plantGrowChance = DEFAULT_PLANT_GROW_CHANCE;
+            c.baseMaxEnergyHerb = DEFAULT_BASE_MAX_ENERGY_HERB;
+            c.baseMaxEnergyCarn = DEFAULT_BASE_MAX_ENERGY_CARN;
+            c.initialEnergyHerb = DEFAULT_INITIAL_ENERGY_HERB;
+            c.initialEnergyCarn = DEFAULT_INITIAL_ENERGY_CARN;
+            c.seed = ThreadLocalRandom.current().nextLong();
+            c.mutationStd = DEFAULT_MUTATION_STD;
+            return c;
+        }
+
+        SimConfig copy() {
+            SimConfig c = new SimConfig();
+            c.width = width;
+            c.height = height;
+            c.initialHerbivores = initialHerbivores;
+            c.initialCarnivores = initialCarnivores;
+            c.initialPlants = initialPlants;
+            c.plantGrowChance = plantGrowChance;
+            c.baseMaxEnergyHerb = baseMaxEnergyHerb;
+            c.baseMaxEnergyCarn = baseMaxEnergyCarn;
+            c.initialEnergyHerb = initialEnergyHerb;
+            c.initialEnergyCarn = initialEnergyCarn;
+            c.seed = seed;
+            c.stepMode = stepMode;
+            c.threads = threads;
+            c.decisionBatch = decisionBatch;
+            c.mutationStd = mutationStd;
+            c.mutationRate = mutationRate;
+            c.plantGrowth = plantGrowth;
+            c.sensors = sensors;
+            c.memoize = memoize;
+            c.agentStore = agentStore;
+            return c;
+        }
+
+        // Начальная энергия не больше максимальной, стартовые количества не больше поля
+        void normalize() {
+            width = Math.clamp(width, MIN_WORLD_SIDE, MAX_WORLD_SIDE);
+            height = Math.clamp(height, MIN_WORLD_SIDE, MAX_WORLD_SIDE);
+            initialEnergyHerb = Math.min(initialEnergyHerb, baseMaxEnergyHerb);
+            initialEnergyCarn = Math.min(initialEnergyCarn, baseMaxEnergyCarn);
+            mutationRate = Math.clamp(mutationRate, 0.0, 1.0);
+            int maxCells = (int) Math.min((long) width * height, Integer.MAX_VALUE);
+            initialPlants = Math.min(initialPlants, maxCells);
+            initialHerbivores = Math.min(initialHerbivores, maxCells);
+            initialCarnivores = Math.min(initialCarnivores, maxCells);
+        }
     }
 
     private final SimConfig config;
@@ -57,7 +199,8 @@ public class Main extends JFrame {
     private final JButton startPauseButton;
 
     // UI-поля для конфигурации
-    private final JSpinner gridSizeSpinner;
+    private final JSpinner widthSpinner;
+    private final JSpinner heightSpinner;
     private final JSpinner initialPlantsSpinner;
     private final JSpinner initialHerbivoresSpinner;
     private final JSpinner initialCarnivoresSpinner;
@@ -67,38 +210,38 @@ public class Main extends JFrame {
     private final JSpinner initEnergyCarnSpinner;
     private final JSpinner maxEnergyCarnSpinner;
 
-    private javax.swing.Timer timer;
-    private boolean running = false;
-    private long generation = 0;
+    // Шаги считаются в отдельном виртуальном потоке, EDT только рисует опубликованные снимки
+    private volatile boolean running = false;
+    private volatile int delayMs = DEFAULT_DELAY;
+    private Thread simulationThread;
+    private SnapshotBuilder snapshots;
+    private final AtomicReference<WorldSnapshot> published = new AtomicReference<>();
+    private final SimulationMonitor monitor;
 
     public Main() {
         super("Искусственная жизнь (нейросети, хищники / травоядные)");
 
         // Инициализируем конфиг значениями по умолчанию
-        config = new SimConfig();
-        config.gridSize = DEFAULT_GRID_SIZE;
-        config.initialHerbivores = DEFAULT_INITIAL_HERBIVORES;
-        config.initialCarnivores = DEFAULT_INITIAL_CARNIVORES;
-        config.initialPlants = DEFAULT_INITIAL_PLANTS;
-        config.plantGrowChance = DEFAULT_PLANT_GROW_CHANCE;
-        config.baseMaxEnergyHerb = DEFAULT_BASE_MAX_ENERGY_HERB;
-        config.baseMaxEnergyCarn = DEFAULT_BASE_MAX_ENERGY_CARN;
-        config.initialEnergyHerb = DEFAULT_INITIAL_ENERGY_HERB;
-        config.initialEnergyCarn = DEFAULT_INITIAL_ENERGY_CARN;
+        config = SimConfig.defaults();
 
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout());
 
         // Создаём мир с текущим конфигом
-        environment = new Environment(config.gridSize, config);
+        environment = new Environment(config);
         environment.initializeDefaultPopulation();
+        monitor = SimulationMonitor.register(environment);
+        snapshots = new SnapshotBuilder(environment);
 
         // Панель симуляции
         panel = new SimulationPanel();
 
         // ==== ПАНЕЛЬ НАСТРОЕК (СВЕРХУ) ====
-        gridSizeSpinner = new JSpinner(new SpinnerNumberModel(
-                DEFAULT_GRID_SIZE, 5, 80, 1
+        widthSpinner = new JSpinner(new SpinnerNumberModel(
+                DEFAULT_GRID_SIZE, MIN_WORLD_SIDE, MAX_WORLD_SIDE, 1
+        ));
+        heightSpinner = new JSpinner(new SpinnerNumberModel(
+                DEFAULT_GRID_SIZE, MIN_WORLD_SIDE, MAX_WORLD_SIDE, 1
         ));
         initialPlantsSpinner = new JSpinner(new SpinnerNumberModel(
                 DEFAULT_INITIAL_PLANTS, 0, 10000, 10
@@ -129,8 +272,10 @@ public class Main extends JFrame {
         configPanel.setLayout(new GridLayout(2, 1));
 
         JPanel row1 = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        row1.add(new JLabel("Размер:"));
-        row1.add(gridSizeSpinner);
+        row1.add(new JLabel("Ширина:"));
+        row1.add(widthSpinner);
+        row1.add(new JLabel("Высота:"));
+        row1.add(heightSpinner);
         row1.add(new JLabel("Растений:"));
         row1.add(initialPlantsSpinner);
         row1.add(new JLabel("Травоядных:"));
@@ -155,7 +300,7 @@ public class Main extends JFrame {
 
         // ==== НИЖНЯЯ ПАНЕЛЬ УПРАВЛЕНИЯ ====
         infoLabel = new JLabel();
-        updateInfoLabel();
+        updateInfoLabel(environment.stats());
 
         startPauseButton = new JButton("Старт");
         startPauseButton.addActionListener(_ -> toggleRunning());
@@ -167,12 +312,7 @@ public class Main extends JFrame {
         resetButton.addActionListener(_ -> resetSimulation());
 
         speedSlider = new JSlider(0, 100, 50);
-        speedSlider.addChangeListener(_ -> {
-            int delay = sliderToDelay(speedSlider.getValue());
-            if (timer != null) {
-                timer.setDelay(delay);
-            }
-        });
+        speedSlider.addChangeListener(_ -> delayMs = sliderToDelay(speedSlider.getValue()));
 
         JPanel controlPanel = new JPanel(new BorderLayout());
         JPanel leftControls = new JPanel();
@@ -190,18 +330,29 @@ public class Main extends JFrame {
         add(panel, BorderLayout.CENTER);
         add(controlPanel, BorderLayout.SOUTH);
 
-        timer = new javax.swing.Timer(DEFAULT_DELAY, _ -> {
-            environment.step();
-            generation++;
-            updateInfoLabel();
-            panel.repaint();
-        });
+        publishFrame(true);
 
         pack();
         setLocationRelativeTo(null);
     }
 
-    static void main() {
+    static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            HeadlessRunner.fromArgs(args).run(System.out);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--sweep")) {
+            if (!SweepRunner.fromArgs(args).run(System.out)) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--bench")) {
+            if (!Benchmarks.fromArgs(args).run(System.out)) {
+                System.exit(1);
+            }
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             Main main = new Main();
             main.setVisible(true);
@@ -215,13 +366,64 @@ public class Main extends JFrame {
 
     private void toggleRunning() {
         if (running) {
-            timer.stop();
+            stopSimulation();
             startPauseButton.setText("Старт");
         } else {
-            timer.start();
+            running = true;
+            simulationThread = Thread.ofVirtual().name("simulation").start(this::simulationLoop);
             startPauseButton.setText("Пауза");
         }
-        running = !running;
+    }
+
+    // Ждём, пока поток симуляции закончит текущий шаг
+    private void stopSimulation() {
+        running = false;
+        if (simulationThread != null) {
+            try {
+                simulationThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            simulationThread = null;
+        }
+    }
+
+    // Runs on the simulation thread; the EDT never touches the Environment while it runs
+    private void simulationLoop() {
+        while (running) {
+            long start = System.nanoTime();
+            environment.step();
+            publishFrame(false);
+            long sleepMs = delayMs - (System.nanoTime() - start) / 1_000_000;
+            if (sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes a snapshot for the EDT. Without force, frames are skipped while the UI
+     * has not shown the previous snapshot yet, so a slow paint never throttles the
+     * simulation. force replaces a pending snapshot (only while the simulation is stopped).
+     */
+    private void publishFrame(boolean force) {
+        WorldSnapshot pending = published.get();
+        if (pending != null && !force) return;
+        published.set(snapshots.build(pending));
+        if (pending == null) {
+            SwingUtilities.invokeLater(this::showFrame);
+        }
+    }
+
+    private void showFrame() {
+        WorldSnapshot s = published.getAndSet(null);
+        if (s == null) return;
+        panel.show(s);
+        updateInfoLabel(s.stats);
     }
 
     private void doOneStep() {
@@ -229,20 +431,18 @@ public class Main extends JFrame {
             toggleRunning();
         }
         environment.step();
-        generation++;
-        updateInfoLabel();
-        panel.repaint();
+        publishFrame(true);
     }
 
     private void resetSimulation() {
         if (running) {
-            timer.stop();
-            running = false;
+            stopSimulation();
         }
         startPauseButton.setText("Старт");
 
         // Забираем значения из UI
-        config.gridSize = (Integer) gridSizeSpinner.getValue();
+        config.width = (Integer) widthSpinner.getValue();
+        config.height = (Integer) heightSpinner.getValue();
         config.initialPlants = (Integer) initialPlantsSpinner.getValue();
         config.initialHerbivores = (Integer) initialHerbivoresSpinner.getValue();
         config.initialCarnivores = (Integer) initialCarnivoresSpinner.getValue();
@@ -252,57 +452,40 @@ public class Main extends JFrame {
         config.initialEnergyHerb = (Integer) initEnergyHerbSpinner.getValue();
         config.initialEnergyCarn = (Integer) initEnergyCarnSpinner.getValue();
 
-        // Корректируем энергии: начальная не должна быть больше максимальной
-        if (config.initialEnergyHerb > config.baseMaxEnergyHerb) {
-            config.initialEnergyHerb = config.baseMaxEnergyHerb;
-            initEnergyHerbSpinner.setValue(config.initialEnergyHerb);
-        }
-        if (config.initialEnergyCarn > config.baseMaxEnergyCarn) {
-            config.initialEnergyCarn = config.baseMaxEnergyCarn;
-            initEnergyCarnSpinner.setValue(config.initialEnergyCarn);
-        }
-
-        // Ограничиваем стартовые количества размером поля
-        int maxCells = config.gridSize * config.gridSize;
-        if (config.initialPlants > maxCells) {
-            config.initialPlants = maxCells;
-            initialPlantsSpinner.setValue(config.initialPlants);
-        }
-        if (config.initialHerbivores > maxCells) {
-            config.initialHerbivores = maxCells;
-            initialHerbivoresSpinner.setValue(config.initialHerbivores);
-        }
-        if (config.initialCarnivores > maxCells) {
-            config.initialCarnivores = maxCells;
-            initialCarnivoresSpinner.setValue(config.initialCarnivores);
-        }
+        // Корректируем значения и показываем исправленные в UI
+        config.normalize();
+        initEnergyHerbSpinner.setValue(config.initialEnergyHerb);
+        initEnergyCarnSpinner.setValue(config.initialEnergyCarn);
+        initialPlantsSpinner.setValue(config.initialPlants);
+        initialHerbivoresSpinner.setValue(config.initialHerbivores);
+        initialCarnivoresSpinner.setValue(config.initialCarnivores);
 
         // Пересоздаём мир с новым размером и конфигом
-        environment = new Environment(config.gridSize, config);
+        environment.shutdown();
+        environment = new Environment(config);
         environment.initializeDefaultPopulation();
-        generation = 0;
+        monitor.attach(environment);
+        snapshots = new SnapshotBuilder(environment);
+        publishFrame(true);
 
         panel.refreshSize();
-        updateInfoLabel();
-        panel.repaint();
         pack();
     }
 
-    private void updateInfoLabel() {
-        int herb = environment.countAgentsOfType(Species.HERBIVORE);
-        int carn = environment.countAgentsOfType(Species.CARNIVORE);
-        int plants = environment.countPlants();
-
+    private void updateInfoLabel(Stats st) {
         infoLabel.setText(String.format(
-                "Поколение: %d | Травоядных: %d | Хищников: %d | Растений: %d",
-                generation, herb, carn, plants
+                "Поколение: %d | Травоядных: %d | Хищников: %d | Растений: %d | Тиков/с: %.0f",
+                st.tick(), st.herbivores(), st.carnivores(), st.plants(),
+                environment.profile().ticksPerSecond()
         ));
     }
 
     // ==== ENUMS & SIMPLE TYPES ====
 
     private enum Species {
-        HERBIVORE, CARNIVORE
+        HERBIVORE, CARNIVORE;
+
+        static final Species[] VALUES = values();
     }
 
     private enum Direction {
@@ -311,6 +494,8 @@ public class Main extends JFrame {
         SOUTH(0, 1),
         WEST(-1, 0);
 
+        static final Direction[] VALUES = values();
+
         final int dx;
         final int dy;
 
@@ -342,67 +527,389 @@ public class Main extends JFrame {
         MOVE_FORWARD,
         TURN_LEFT,
         TURN_RIGHT,
-        EAT
+        EAT;
+
+        // values() clones the array on every call
+        static final ActionType[] VALUES = values();
+    }
+
+    // ==== SENSORS ====
+
+    /**
+     * What an agent senses, as rectangular areas in its own frame: an area centered
+     * `ahead` cells in front of the agent and `right` cells to its right, `depth` cells
+     * along its heading and `breadth` across. Each area gives three inputs (plant,
+     * herbivore and carnivore density; the agent does not count itself), followed by
+     * the agent's energy and a bias input. Parsed from a spec of items joined with '+':
+     * "classic" (the four cells near, front, left and right of the original model), "NxM"
+     * (an area around the agent) or "AHEAD:RIGHT:DEPTHxBREADTH", e.g. "classic+9x9".
+     */
+    private static final class SensorLayout {
+        private static final int MAX_AREA_CELLS = (1 << 21) - 1;  // Grid.countRect packs counts in 21 bits
+
+        record Area(int ahead, int right, int depth, int breadth) {
+            int cells() {
+                return depth * breadth;
+            }
+
+            boolean coversSelf() {
+                return Math.abs(ahead) <= depth / 2 && Math.abs(right) <= breadth / 2;
+            }
+        }
+
+        final Area[] areas;
+
+        private SensorLayout(Area[] areas) {
+            this.areas = areas;
+        }
+
+        static SensorLayout parse(String spec) {
+            List<Area> areas = new ArrayList<>();
+            for (String item : spec.split("\\+")) {
+                if (item.equals("classic")) {
+                    areas.add(new Area(1, 0, 1, 1));   // nearness
+                    areas.add(new Area(2, 0, 1, 1));   // front
+                    areas.add(new Area(0, -1, 1, 1));  // left
+                    areas.add(new Area(0, 1, 1, 1));   // right
+                    continue;
+                }
+                String[] f = item.split(":");
+                if (f.length != 1 && f.length != 3) {
+                    throw new IllegalArgumentException("Bad sensor area: " + item);
+                }
+                String[] size = f[f.length - 1].split("x");
+                if (size.length != 2) {
+                    throw new IllegalArgumentException("Bad sensor area size: " + item);
+                }
+                Area a = new Area(f.length == 3 ? Integer.parseInt(f[0]) : 0, f.length == 3 ? Integer.parseInt(f[1]) : 0,
+                        Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+                if (a.depth() <= 0 || a.breadth() <= 0 || a.depth() % 2 == 0 || a.breadth() % 2 == 0
+                        || (long) a.depth() * a.breadth() > MAX_AREA_CELLS) {
+                    throw new IllegalArgumentException("Sensor areas need odd sizes and at most "
+                            + MAX_AREA_CELLS + " cells: " + item);
+                }
+                areas.add(a);
+            }
+            return new SensorLayout(areas.toArray(new Area[0]));
+        }
+
+        int inputs() {
+            return 3 * areas.length + 2;
+        }
+
+        /** Largest distance along either axis from the agent to a sensed cell, for any heading. */
+        int reach() {
+            int reach = 0;
+            for (Area a : areas) {
+                reach = Math.max(reach, Math.abs(a.ahead()) + a.depth() / 2);
+                reach = Math.max(reach, Math.abs(a.right()) + a.breadth() / 2);
+            }
+            return reach;
+        }
+
+        /** Throws if an area does not fit the world, where it would wrap onto itself. */
+        void checkFits(int width, int height) {
+            for (Area a : areas) {
+                int span = Math.max(a.depth(), a.breadth());
+                if (span > width || span > height) {
+                    throw new IllegalArgumentException("Sensor area " + a.depth() + "x" + a.breadth()
+                            + " does not fit a " + width + "x" + height + " world");
+                }
+            }
+        }
     }
 
     // ==== NEURAL NETWORK ====
 
+    /**
+     * Immutable brain (genome): once built its parameters never change, so identical
+     * clones can share one instance. The id is a hash of the parameters, the sum of one
+     * hash per parameter, so a child that differs in a few parameters gets its id in a
+     * few steps; parentId links it to the genome it was mutated from.
+     */
     private static class NeuralNetwork {
-        private static final double MUTATION_STD = 0.05;
-
-        private final double[][] weights; // [output][input]
-        private final double[] biases;    // [output]
-        private final Random rnd;
+        // Flat float32 parameters: weight (output i, input j) at j * NN_OUTPUTS + i, so the
+        // weights of one input for all outputs are adjacent; biases follow the weights.
+        // The input count comes from the SensorLayout. Sums are still accumulated in double.
+        private final float[] params;
+        private final int inputs;
+        private final int biasOffset;
+        final long id;
+        final long parentId;  // 0 for a founder
+        int refs;             // agents in the pool using this genome, kept by GenomeStore
+
+        NeuralNetwork(int inputs, RandomGenerator rnd) {
+            this(randomParams(inputs, rnd), 0);
+        }
 
-        NeuralNetwork(Random rnd) {
-            this.rnd = rnd;
-            this.weights = new double[NN_OUTPUTS][NN_INPUTS];
-            this.biases = new double[NN_OUTPUTS];
-            randomize();
+        NeuralNetwork(float[] params, long parentId) {
+            this(params, genomeId(params), parentId);
         }
 
-        private NeuralNetwork(Random rnd, double[][] w, double[] b) {
-            this.rnd = rnd;
-            this.weights = w;
-            this.biases = b;
+        private NeuralNetwork(float[] params, long id, long parentId) {
+            this.params = params;
+            this.inputs = params.length / NN_OUTPUTS - 1;
+            this.biasOffset = inputs * NN_OUTPUTS;
+            this.id = id;
+            this.parentId = parentId;
         }
 
-        void randomize() {
+        private static float[] randomParams(int inputs, RandomGenerator rnd) {
+            float[] params = new float[paramCount(inputs)];
+            int biasOffset = inputs * NN_OUTPUTS;
             for (int i = 0; i < NN_OUTPUTS; i++) {
-                biases[i] = rnd.nextGaussian() * 0.1;
-                for (int j = 0; j < NN_INPUTS; j++) {
-                    weights[i][j] = rnd.nextGaussian() * 0.3;
+                params[biasOffset + i] = (float) (rnd.nextGaussian() * 0.1);
+                for (int j = 0; j < inputs; j++) {
+                    params[j * NN_OUTPUTS + i] = (float) (rnd.nextGaussian() * 0.3);
                 }
             }
+            return params;
+        }
+
+        private static long genomeId(float[] params) {
+            long id = 0;
+            for (int i = 0; i < params.length; i++) {
+                id += paramHash(i, params[i]);
+            }
+            return id;
+        }
+
+        // SplitMix64 finalizer of the parameter's index and bits
+        private static long paramHash(int index, float value) {
+            long z = ((long) index << 32 | Float.floatToIntBits(value) & 0xFFFFFFFFL) + 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        boolean sameParams(NeuralNetwork other) {
+            return Arrays.equals(params, other.params);
+        }
+
+        static int paramCount(int inputs) {
+            return (inputs + 1) * NN_OUTPUTS;
         }
 
-        ActionType decide(double[] inputs) {
+        ActionType decide(double[] in) {
             double best = Double.NEGATIVE_INFINITY;
             int bestIndex = 0;
             for (int i = 0; i < NN_OUTPUTS; i++) {
-                double sum = biases[i];
-                double[] row = weights[i];
-                for (int j = 0; j < NN_INPUTS; j++) {
-                    sum += row[j] * inputs[j];
+                double sum = params[biasOffset + i];
+                for (int j = 0; j < inputs; j++) {
+                    sum += params[j * NN_OUTPUTS + i] * in[j];
                 }
                 if (sum > best) {
                     best = sum;
                     bestIndex = i;
                 }
             }
-            return ActionType.values()[bestIndex];
+            return ActionType.VALUES[bestIndex];
+        }
+
+        /**
+         * The output sums of decide() over all inputs but the last two (energy and bias),
+         * for agents whose other inputs stay the same for a while; see finish().
+         */
+        void partialSums(double[] in, double[] out) {
+            for (int i = 0; i < NN_OUTPUTS; i++) {
+                double sum = params[biasOffset + i];
+                for (int j = 0; j < inputs - 2; j++) {
+                    sum += params[j * NN_OUTPUTS + i] * in[j];
+                }
+                out[i] = sum;
+            }
+        }
+
+        /** Completes partialSums() with the energy and bias inputs; the same action as decide(). */
+        ActionType finish(double[] partial, double energy) {
+            int e = (inputs - 2) * NN_OUTPUTS;
+            double best = Double.NEGATIVE_INFINITY;
+            int bestIndex = 0;
+            for (int i = 0; i < NN_OUTPUTS; i++) {
+                double sum = partial[i];
+                sum += params[e + i] * energy;
+                sum += params[e + NN_OUTPUTS + i] * 1.0;
+                if (sum > best) {
+                    best = sum;
+                    bestIndex = i;
+                }
+            }
+            return ActionType.VALUES[bestIndex];
+        }
+
+        /**
+         * Evaluates count brains of the same input count n at once. Inputs of brain k are inputs[k * n ..],
+         * sums is scratch of NN_OUTPUTS. Each input is loaded once and multiplied into
+         * all outputs; per output the sum runs in the same order as decide(), so the
+         * chosen actions are identical.
+         */
+        static void decideBatch(NeuralNetwork[] brains, double[] inputs, int count,
+                                double[] sums, ActionType[] out) {
+            if (NN_OUTPUTS == 4) {
+                decideBatch4(brains, inputs, count, out);
+                return;
+            }
+            for (int k = 0; k < count; k++) {
+                NeuralNetwork brain = brains[k];
+                float[] p = brain.params;
+                int n = brain.inputs;
+                int in = k * n;
+                System.arraycopy(p, brain.biasOffset, sums, 0, NN_OUTPUTS);
+                for (int j = 0; j < n; j++) {
+                    double x = inputs[in + j];
+                    int w = j * NN_OUTPUTS;
+                    for (int i = 0; i < NN_OUTPUTS; i++) {
+                        sums[i] += p[w + i] * x;
+                    }
+                }
+                double best = Double.NEGATIVE_INFINITY;
+                int bestIndex = 0;
+                for (int i = 0; i < NN_OUTPUTS; i++) {
+                    if (sums[i] > best) {
+                        best = sums[i];
+                        bestIndex = i;
+                    }
+                }
+                out[k] = ActionType.VALUES[bestIndex];
+            }
+        }
+
+        // Four outputs kept in registers: one 4-wide multiply-add per input
+        private static void decideBatch4(NeuralNetwork[] brains, double[] inputs, int count, ActionType[] out) {
+            for (int k = 0; k < count; k++) {
+                NeuralNetwork brain = brains[k];
+                float[] p = brain.params;
+                int n = brain.inputs;
+                int in = k * n;
+                double s0 = p[brain.biasOffset];
+                double s1 = p[brain.biasOffset + 1];
+                double s2 = p[brain.biasOffset + 2];
+                double s3 = p[brain.biasOffset + 3];
+                for (int j = 0, w = 0; j < n; j++, w += 4) {
+                    double x = inputs[in + j];
+                    s0 += p[w] * x;
+                    s1 += p[w + 1] * x;
+                    s2 += p[w + 2] * x;
+                    s3 += p[w + 3] * x;
+                }
+                // Strict > keeps the lowest index on ties, as in decide()
+                int bestIndex = 0;
+                double best = s0;
+                if (s1 > best) { best = s1; bestIndex = 1; }
+                if (s2 > best) { best = s2; bestIndex = 2; }
+                if (s3 > best) { bestIndex = 3; }
+                out[k] = ActionType.VALUES[bestIndex];
+            }
+        }
+
+        /**
+         * A child genome: with rate 1 every parameter gets Gaussian noise of std, with a
+         * smaller rate each parameter independently with that probability. Sparse mutation
+         * jumps from one mutated parameter to the next with geometric gaps, copies the
+         * parameters only when the first one changes and returns this genome itself when
+         * none does. rnd is the caller's stream, so parallel stripes never share a generator.
+         */
+        NeuralNetwork copyWithMutation(RandomGenerator rnd, double std, double rate) {
+            if (std == 0 || rate <= 0) {
+                return this;  // identical clone shares the immutable parameters
+            }
+            if (rate < 1) {
+                return copyWithSparseMutation(rnd, std, rate);
+            }
+            float[] p = new float[params.length];
+            for (int i = 0; i < NN_OUTPUTS; i++) {
+                p[biasOffset + i] = (float) (params[biasOffset + i] + rnd.nextGaussian() * std);
+                for (int j = 0; j < inputs; j++) {
+                    int w = j * NN_OUTPUTS + i;
+                    p[w] = (float) (params[w] + rnd.nextGaussian() * std);
+                }
+            }
+            return new NeuralNetwork(p, id);
+        }
+
+        private NeuralNetwork copyWithSparseMutation(RandomGenerator rnd, double std, double rate) {
+            double logKeep = Math.log1p(-rate);
+            float[] p = null;
+            long childId = id;
+            long i = -1;
+            while (true) {
+                i += 1 + (long) (Math.log(1.0 - rnd.nextDouble()) / logKeep);
+                if (i >= params.length) break;
+                int k = (int) i;
+                if (p == null) p = params.clone();
+                p[k] = (float) (params[k] + rnd.nextGaussian() * std);
+                childId += paramHash(k, p[k]) - paramHash(k, params[k]);
+            }
+            return p == null ? this : new NeuralNetwork(p, childId, id);
+        }
+
+        long hash() {
+            return hash(params);
         }
 
-        NeuralNetwork copyWithMutation() {
-            double[][] newW = new double[NN_OUTPUTS][NN_INPUTS];
-            double[] newB = new double[NN_OUTPUTS];
+        static long hash(float[] params) {
+            int inputs = params.length / NN_OUTPUTS - 1;
+            int biasOffset = inputs * NN_OUTPUTS;
+            long h = 1;
             for (int i = 0; i < NN_OUTPUTS; i++) {
-                newB[i] = biases[i] + rnd.nextGaussian() * MUTATION_STD;
-                for (int j = 0; j < NN_INPUTS; j++) {
-                    newW[i][j] = weights[i][j] + rnd.nextGaussian() * MUTATION_STD;
+                h = 31 * h + Float.floatToIntBits(params[biasOffset + i]);
+                for (int j = 0; j < inputs; j++) {
+                    h = 31 * h + Float.floatToIntBits(params[j * NN_OUTPUTS + i]);
                 }
             }
-            return new NeuralNetwork(rnd, newW, newB);
+            return h;
+        }
+    }
+
+    /**
+     * The distinct genomes of the agents in the pool, interned by id: a new brain equal to
+     * a live one is replaced by it, so clones share one instance wherever they came from
+     * (a restored snapshot, independent mutations). Each genome counts the agents using it
+     * and leaves the store with the last of them. Only called from single-threaded pool
+     * updates.
+     */
+    private static final class GenomeStore {
+        private final Map<Long, NeuralNetwork> live = new HashMap<>();
+        private int distinct;
+        private long created;
+
+        NeuralNetwork acquire(NeuralNetwork brain) {
+            if (brain.refs == 0) {
+                NeuralNetwork known = live.get(brain.id);
+                if (known != null && known.sameParams(brain)) {
+                    brain = known;
+                } else {
+                    if (known == null) live.put(brain.id, brain);  // a colliding id stays uninterned
+                    distinct++;
+                    created++;
+                }
+            }
+            brain.refs++;
+            return brain;
+        }
+
+        void release(NeuralNetwork brain) {
+            if (--brain.refs == 0) {
+                live.remove(brain.id, brain);
+                distinct--;
+            }
+        }
+
+        /** Genomes used by at least one agent. */
+        int distinct() {
+            return distinct;
+        }
+
+        /** Genomes that entered the store so far, counting ones that left again. */
+        long created() {
+            return created;
+        }
+
+        // The caller resets the refs of the genomes it still holds
+        void clear() {
+            live.clear();
+            distinct = 0;
+            created = 0;
         }
     }
 
@@ -416,8 +923,24 @@ public class Main extends JFrame {
         int maxEnergy;
         NeuralNetwork brain;
         boolean alive = true;
+        int id = -1;      // index in the AgentPool id table, referenced from Grid
+        int slot = -1;    // index in the AgentPool dense array, -1 outside the pool
+        boolean ghost;    // read-only copy of a neighbour shard's agent for one phase (Environment.stepSharded)
+
+        // Memoized decision (Environment.decideMemoized): the sensed area counts, the brain
+        // sums over them and where and when (Grid clock) they were sensed; -1 if nothing is cached
+        long memoStamp = -1;
+        int memoX, memoY;
+        Direction memoDir;
+        long[] memoCounts;
+        double[] memoSums;
 
         Agent(Species species, int x, int y, Direction dir, int energy, int maxEnergy, NeuralNetwork brain) {
+            reset(species, x, y, dir, energy, maxEnergy, brain);
+        }
+
+        // Turns a dead agent's object into a new agent
+        void reset(Species species, int x, int y, Direction dir, int energy, int maxEnergy, NeuralNetwork brain) {
             this.species = species;
             this.x = x;
             this.y = y;
@@ -425,6 +948,11 @@ public class Main extends JFrame {
             this.energy = energy;
             this.maxEnergy = maxEnergy;
             this.brain = brain;
+            this.alive = true;
+            this.id = -1;
+            this.slot = -1;
+            this.ghost = false;
+            this.memoStamp = -1;
         }
 
         double energyNormalized() {
@@ -432,418 +960,5380 @@ public class Main extends JFrame {
         }
     }
 
-    // ==== CELL & ENVIRONMENT ====
-
-    private static class Cell {
-        boolean plant;
-        Agent agent;
-    }
-
-    private static class Environment {
-        private final int size;
-        private final Cell[][] grid;
-        private final List<Agent> agents;
-        private final Random rnd;
-        private final SimConfig config;
-
-        Environment(int size, SimConfig config) {
-            this.size = size;
-            this.config = config;
-            this.grid = new Cell[size][size];
-            for (int y = 0; y < size; y++) {
-                for (int x = 0; x < size; x++) {
-                    grid[y][x] = new Cell();
-                }
+    // ==== GRID & ENVIRONMENT ====
+
+    /**
+     * Sparse cell storage in chunks of 64x64 cells: one plant bit, one bit per species
+     * and one agent id per cell. A chunk is allocated by the first plant or agent written
+     * into it, its species bits by its first agent and agent ids in blocks of 16x16 cells
+     * by the first agent of a block, so regions nobody visits cost one null reference per
+     * chunk and a lone agent about 2 KB; compact() frees what became empty again. Each row
+     * of a chunk is its own word per layer, so stripes writing different rows never share
+     * a word, and countRect() counts a rectangle with a popcount per row and chunk.
+     * Stripes of one phase may allocate in the same chunk, so chunks, species bits and
+     * blocks are published with a CAS.
+     */
+    private static class Grid {
+        static final int EMPTY = -1;
+        static final int CHUNK_SHIFT = 6;
+        static final int CHUNK = 1 << CHUNK_SHIFT;
+        private static final int MASK = CHUNK - 1;
+        private static final int BLOCK_SHIFT = 4;
+        private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+        private static final int BLOCKS_PER_ROW = CHUNK >>> BLOCK_SHIFT;
+        private static final int TILE_SHIFT = 3;
+        private static final int TILES_PER_ROW = CHUNK >>> TILE_SHIFT;
+        private static final int TILES_SHIFT_IN_CHUNK = CHUNK_SHIFT - TILE_SHIFT;
+        private static final VarHandle CHUNKS = MethodHandles.arrayElementVarHandle(Chunk[].class);
+        private static final VarHandle BLOCKS = MethodHandles.arrayElementVarHandle(int[][].class);
+        private static final VarHandle LAYERS = MethodHandles.arrayElementVarHandle(long[][].class);
+
+        private static final class Chunk {
+            final long[] plants = new long[CHUNK];  // word per row, bit per column
+            final long[][] species = new long[Species.values().length][];  // same layout per species, null while empty
+            final int[][] agentIds = new int[BLOCKS_PER_ROW * BLOCKS_PER_ROW][];  // row-major blocks, null while empty
+            long[] dirty;                           // same layout as plants; null unless tracked
+            final long[] stamps;                    // Grid clock of the last write per 8x8 tile; null unless stamped
+
+            Chunk(boolean tracked, boolean stamped) {
+                if (tracked) dirty = new long[CHUNK];
+                stamps = stamped ? new long[TILES_PER_ROW * TILES_PER_ROW] : null;
             }
-            this.agents = new ArrayList<>();
-            this.rnd = new Random();
-        }
-
-        int getSize() {
-            return size;
-        }
 
-        void initializeDefaultPopulation() {
-            agents.clear();
-            for (int y = 0; y < size; y++) {
-                for (int x = 0; x < size; x++) {
-                    grid[y][x].agent = null;
-                    grid[y][x].plant = false;
+            long[] speciesForWrite(int s) {
+                long[] bits = (long[]) LAYERS.getAcquire(species, s);
+                if (bits == null) {
+                    long[] fresh = new long[CHUNK];
+                    bits = (long[]) LAYERS.compareAndExchange(species, s, null, fresh);
+                    if (bits == null) bits = fresh;
                 }
+                return bits;
             }
 
-            // Initial plants
-            for (int i = 0; i < config.initialPlants; i++) {
-                int x = rnd.nextInt(size);
-                int y = rnd.nextInt(size);
-                grid[y][x].plant = true;
+            long speciesRow(int s, int r) {
+                long[] bits = (long[]) LAYERS.getAcquire(species, s);
+                return bits == null ? 0 : bits[r];
             }
 
-            // Herbivores
-            for (int i = 0; i < config.initialHerbivores; i++) {
-                placeRandomAgent(
-                        Species.HERBIVORE,
-                        config.initialEnergyHerb,
-                        config.baseMaxEnergyHerb
-                );
+            boolean isEmpty() {
+                for (int[] block : agentIds) {
+                    if (block != null) return false;
+                }
+                for (long[] bits : species) {
+                    if (bits != null) return false;
+                }
+                for (int r = 0; r < CHUNK; r++) {
+                    if (plants[r] != 0 || (dirty != null && dirty[r] != 0)) return false;
+                }
+                return true;
             }
+        }
 
-            // Carnivores
-            for (int i = 0; i < config.initialCarnivores; i++) {
-                placeRandomAgent(
-                        Species.CARNIVORE,
-                        config.initialEnergyCarn,
-                        config.baseMaxEnergyCarn
-                );
-            }
+        private static int block(int x, int y) {
+            return ((y & MASK) >>> BLOCK_SHIFT) * BLOCKS_PER_ROW + ((x & MASK) >>> BLOCK_SHIFT);
         }
 
-        private void placeRandomAgent(Species species, int energy, int maxEnergy) {
-            for (int tries = 0; tries < 100; tries++) {
-                int x = rnd.nextInt(size);
-                int y = rnd.nextInt(size);
-                if (grid[y][x].agent == null) {
-                    Direction dir = Direction.values()[rnd.nextInt(Direction.values().length)];
-                    NeuralNetwork brain = new NeuralNetwork(rnd);
-                    Agent a = new Agent(species, x, y, dir, energy, maxEnergy, brain);
-                    grid[y][x].agent = a;
-                    agents.add(a);
-                    return;
-                }
-            }
+        private static int tile(int x, int y) {
+            return ((y & MASK) >>> TILE_SHIFT) * TILES_PER_ROW + ((x & MASK) >>> TILE_SHIFT);
         }
 
-        int wrap(int v) {
-            if (v < 0) return v + size;
-            if (v >= size) return v - size;
-            return v;
+        private static int inBlock(int x, int y) {
+            return (y & BLOCK_MASK) << BLOCK_SHIFT | (x & BLOCK_MASK);
         }
 
-        void step() {
-            Collections.shuffle(agents, rnd);
+        final int width;
+        final int height;
+        private final int chunksX;
+        private final Chunk[] chunks;
+        private boolean tracked;  // dirty cells recorded since enableDirtyTracking()
+        private final boolean stamped;  // writes stamp their chunk; single-threaded writers only
+        private long clock;
+        private long freedAt;  // clock when compact() last freed a chunk
+
+        Grid(int width, int height, boolean stamped) {
+            this.width = width;
+            this.height = height;
+            this.stamped = stamped;
+            this.chunksX = (width + MASK) >>> CHUNK_SHIFT;
+            this.chunks = new Chunk[Math.multiplyExact(chunksX, (height + MASK) >>> CHUNK_SHIFT)];
+        }
 
-            List<Agent> newAgents = new ArrayList<>();
-            List<Agent> deadAgents = new ArrayList<>();
+        long cellCount() {
+            return (long) width * height;
+        }
 
-            for (Agent a : agents) {
-                if (!a.alive) continue;
+        int chunkCount() {
+            return chunks.length;
+        }
 
-                // Base energy cost per tick
-                a.energy--;
-                if (a.energy <= 0) {
-                    killAgent(a, deadAgents);
-                    continue;
-                }
+        int chunkX(int chunk) {
+            return (chunk % chunksX) << CHUNK_SHIFT;
+        }
 
-                // Sense environment and choose action
-                double[] inputs = buildInputs(a);
-                ActionType act = a.brain.decide(inputs);
+        int chunkY(int chunk) {
+            return (chunk / chunksX) << CHUNK_SHIFT;
+        }
 
-                switch (act) {
-                    case MOVE_FORWARD -> performMove(a, deadAgents);
-                    case TURN_LEFT -> a.dir = a.dir.turnLeft();
-                    case TURN_RIGHT -> a.dir = a.dir.turnRight();
-                    case EAT -> performEat(a, deadAgents);
-                }
+        boolean isAllocated(int chunk) {
+            return chunks[chunk] != null;
+        }
 
-                if (!a.alive) continue;
+        int allocatedChunks() {
+            int n = 0;
+            for (Chunk c : chunks) {
+                if (c != null) n++;
+            }
+            return n;
+        }
 
-                // Reproduction
-                if (a.energy >= a.maxEnergy * REPRODUCTION_THRESHOLD) {
-                    maybeReproduce(a, newAgents);
-                }
+        private Chunk chunk(int x, int y) {
+            return (Chunk) CHUNKS.getAcquire(chunks, (y >>> CHUNK_SHIFT) * chunksX + (x >>> CHUNK_SHIFT));
+        }
 
-                // Death if energy exhausted after actions
-                if (a.energy <= 0) {
-                    killAgent(a, deadAgents);
-                }
+        private Chunk chunkForWrite(int x, int y) {
+            int i = (y >>> CHUNK_SHIFT) * chunksX + (x >>> CHUNK_SHIFT);
+            Chunk c = (Chunk) CHUNKS.getAcquire(chunks, i);
+            if (c == null) {
+                Chunk fresh = new Chunk(tracked, stamped);
+                c = (Chunk) CHUNKS.compareAndExchange(chunks, i, null, fresh);
+                if (c == null) c = fresh;
             }
+            return c;
+        }
 
-            agents.removeAll(deadAgents);
-            agents.addAll(newAgents);
-            growPlants();
+        boolean hasPlant(int x, int y) {
+            Chunk c = chunk(x, y);
+            return c != null && (c.plants[y & MASK] & (1L << x)) != 0;
         }
 
-        private void killAgent(Agent a, List<Agent> dead) {
-            a.alive = false;
-            Cell c = grid[a.y][a.x];
-            if (c.agent == a) {
-                c.agent = null;
-            }
-            dead.add(a);
+        void setPlant(int x, int y) {
+            Chunk c = chunkForWrite(x, y);
+            c.plants[y & MASK] |= 1L << x;
+            if (c.dirty != null) c.dirty[y & MASK] |= 1L << x;
+            if (stamped) c.stamps[tile(x, y)] = ++clock;
         }
 
-        private void performMove(Agent a, List<Agent> deadAgents) {
-            int nx = wrap(a.x + a.dir.dx);
-            int ny = wrap(a.y + a.dir.dy);
-            Cell from = grid[a.y][a.x];
-            Cell to = grid[ny][nx];
+        void clearPlant(int x, int y) {
+            Chunk c = chunk(x, y);
+            if (c == null) return;
+            c.plants[y & MASK] &= ~(1L << x);
+            if (c.dirty != null) c.dirty[y & MASK] |= 1L << x;
+            if (stamped) c.stamps[tile(x, y)] = ++clock;
+        }
 
-            if (to.agent != null) {
-                if (a.species == Species.CARNIVORE && to.agent.species == Species.HERBIVORE) {
-                    Agent victim = to.agent;
-                    victim.alive = false;
-                    to.agent = null;
-                    deadAgents.add(victim);
+        int agentId(int x, int y) {
+            Chunk c = chunk(x, y);
+            if (c == null) return EMPTY;
+            int[] ids = (int[]) BLOCKS.getAcquire(c.agentIds, block(x, y));
+            return ids == null ? EMPTY : ids[inBlock(x, y)];
+        }
 
-                    from.agent = null;
-                    a.x = nx;
-                    a.y = ny;
-                    to.agent = a;
+        void putAgent(int x, int y, int id, Species species) {
+            Chunk c = chunkForWrite(x, y);
+            int b = block(x, y);
+            int[] ids = (int[]) BLOCKS.getAcquire(c.agentIds, b);
+            if (ids == null) {
+                int[] fresh = new int[1 << 2 * BLOCK_SHIFT];
+                Arrays.fill(fresh, EMPTY);
+                ids = (int[]) BLOCKS.compareAndExchange(c.agentIds, b, null, fresh);
+                if (ids == null) ids = fresh;
+            }
+            ids[inBlock(x, y)] = id;
+            c.speciesForWrite(species.ordinal())[y & MASK] |= 1L << x;
+            if (c.dirty != null) c.dirty[y & MASK] |= 1L << x;
+            if (stamped) c.stamps[tile(x, y)] = ++clock;
+        }
 
-                    a.energy = Math.min(a.maxEnergy, a.energy + 2 * ENERGY_UNIT);
-                }
-                return;
+        void removeAgent(int x, int y) {
+            Chunk c = chunk(x, y);
+            if (c == null) return;
+            int[] ids = (int[]) BLOCKS.getAcquire(c.agentIds, block(x, y));
+            if (ids == null) return;
+            ids[inBlock(x, y)] = EMPTY;
+            for (int s = 0; s < c.species.length; s++) {
+                long[] bits = (long[]) LAYERS.getAcquire(c.species, s);
+                if (bits != null) bits[y & MASK] &= ~(1L << x);
             }
+            if (c.dirty != null) c.dirty[y & MASK] |= 1L << x;
+            if (stamped) c.stamps[tile(x, y)] = ++clock;
+        }
 
-            from.agent = null;
-            a.x = nx;
-            a.y = ny;
-            to.agent = a;
+        /** Stamp of the latest write so far; later writes get larger stamps. */
+        long clock() {
+            return clock;
+        }
 
-            if (a.species == Species.HERBIVORE && to.plant) {
-                to.plant = false;
-                a.energy = Math.min(a.maxEnergy, a.energy + ENERGY_UNIT);
+        /**
+         * Latest write stamp of the 8x8 tiles within reach cells of (x, y) along either
+         * axis. A missing chunk reads as the last time compact() freed one, which may have
+         * dropped a newer stamp.
+         */
+        long lastWrite(int x, int y, int reach) {
+            int tilesX = (width + (1 << TILE_SHIFT) - 1) >>> TILE_SHIFT;
+            int tilesY = (height + (1 << TILE_SHIFT) - 1) >>> TILE_SHIFT;
+            long latest = 0;
+            int ty = firstTile(y, reach, height);
+            for (int ny = tileSpan(y, reach, height, tilesY); ny > 0; ny--) {
+                int tx = firstTile(x, reach, width);
+                for (int nx = tileSpan(x, reach, width, tilesX); nx > 0; nx--) {
+                    Chunk c = chunks[(ty >>> TILES_SHIFT_IN_CHUNK) * chunksX + (tx >>> TILES_SHIFT_IN_CHUNK)];
+                    long stamp = c != null
+                            ? c.stamps[(ty & TILES_PER_ROW - 1) * TILES_PER_ROW + (tx & TILES_PER_ROW - 1)]
+                            : freedAt;
+                    if (stamp > latest) latest = stamp;
+                    if (++tx == tilesX) tx = 0;
+                }
+                if (++ty == tilesY) ty = 0;
             }
+            return latest;
         }
 
-        private void performEat(Agent a, List<Agent> deadAgents) {
-            int nx = wrap(a.x + a.dir.dx);
-            int ny = wrap(a.y + a.dir.dy);
-            Cell target = grid[ny][nx];
+        private static int firstTile(int at, int reach, int side) {
+            return 2 * reach + 1 >= side ? 0 : Math.floorMod(at - reach, side) >>> TILE_SHIFT;
+        }
 
-            if (a.species == Species.HERBIVORE) {
-                if (target.plant && target.agent == null) {
-                    target.plant = false;
-                    a.energy = Math.min(a.maxEnergy, a.energy + ENERGY_UNIT);
-                }
-            } else {
-                if (target.agent != null && target.agent.species == Species.HERBIVORE) {
-                    Agent victim = target.agent;
-                    victim.alive = false;
-                    target.agent = null;
-                    deadAgents.add(victim);
-
-                    Cell from = grid[a.y][a.x];
-                    from.agent = null;
-                    a.x = nx;
-                    a.y = ny;
-                    target.agent = a;
+        // Tiles covering [at - reach, at + reach] on a torus of the given side, walked from firstTile()
+        private static int tileSpan(int at, int reach, int side, int count) {
+            if (2 * reach + 1 >= side) return count;
+            int from = Math.floorMod(at - reach, side);
+            int to = from + 2 * reach;
+            if (to < side) return (to >>> TILE_SHIFT) - (from >>> TILE_SHIFT) + 1;
+            return count - (from >>> TILE_SHIFT) + ((to - side) >>> TILE_SHIFT) + 1;
+        }
 
-                    a.energy = Math.min(a.maxEnergy, a.energy + 2 * ENERGY_UNIT);
-                }
+        /**
+         * Counts plants, herbivores and carnivores in the w x h rectangle whose top-left
+         * cell is (x, y), wrapping around the torus; w and h must not exceed the world.
+         * Returns plants | herbivores << 21 | carnivores << 42, so the rectangle may have
+         * at most 2^21 - 1 cells. Costs a popcount per layer, row and chunk touched.
+         */
+        long countRect(int x, int y, int w, int h) {
+            x = Math.floorMod(x, width);
+            y = Math.floorMod(y, height);
+            int first = Math.min(w, width - x);
+            long counts = 0;
+            for (int i = 0; i < h; i++) {
+                int row = y + i < height ? y + i : y + i - height;
+                counts += countSpan(x, x + first, row);
+                if (first < w) counts += countSpan(0, w - first, row);
             }
+            return counts;
         }
 
-        private void maybeReproduce(Agent parent, List<Agent> newborns) {
-            List<int[]> free = new ArrayList<>();
-            for (int dy = -1; dy <= 1; dy++) {
-                for (int dx = -1; dx <= 1; dx++) {
-                    if (dx == 0 && dy == 0) continue;
-                    int nx = wrap(parent.x + dx);
-                    int ny = wrap(parent.y + dy);
-                    if (grid[ny][nx].agent == null) {
-                        free.add(new int[]{nx, ny});
-                    }
+        private long countSpan(int from, int to, int y) {
+            long counts = 0;
+            int r = y & MASK;
+            while (from < to) {
+                int end = Math.min(to, (from | MASK) + 1);
+                Chunk c = chunk(from, y);
+                if (c != null) {
+                    int n = end - from;
+                    long mask = (n == CHUNK ? -1L : (1L << n) - 1) << from;
+                    counts += Long.bitCount(c.plants[r] & mask)
+                            | (long) Long.bitCount(c.speciesRow(0, r) & mask) << 21
+                            | (long) Long.bitCount(c.speciesRow(1, r) & mask) << 42;
                 }
+                from = end;
             }
-            if (free.isEmpty()) return;
-
-            int[] pos = free.get(rnd.nextInt(free.size()));
+            return counts;
+        }
 
-            int childEnergy = parent.energy / 2;
-            parent.energy = parent.energy - childEnergy;
+        void enableDirtyTracking() {
+            if (tracked) return;
+            tracked = true;
+            for (Chunk c : chunks) {
+                if (c != null) c.dirty = new long[CHUNK];
+            }
+        }
 
-            if (childEnergy <= 0) return;
+        boolean tracksDirty() {
+            return tracked;
+        }
 
-            NeuralNetwork childBrain = parent.brain.copyWithMutation();
-            Agent child = new Agent(
-                    parent.species,
-                    pos[0],
-                    pos[1],
-                    Direction.values()[rnd.nextInt(Direction.values().length)],
-                    childEnergy,
-                    parent.maxEnergy,
-                    childBrain
-            );
-            grid[pos[1]][pos[0]].agent = child;
-            newborns.add(child);
+        void markDirty(int x, int y) {
+            Chunk c = chunk(x, y);
+            if (c != null && c.dirty != null) c.dirty[y & MASK] |= 1L << x;
         }
 
-        private void growPlants() {
-            for (int y = 0; y < size; y++) {
-                for (int x = 0; x < size; x++) {
-                    Cell c = grid[y][x];
-                    if (!c.plant && c.agent == null) {
-                        if (rnd.nextDouble() < config.plantGrowChance) {
-                            c.plant = true;
-                        }
+        /** Passes y * width + x of every changed cell; only for worlds of less than 2^31 cells. */
+        void drainDirty(IntConsumer action) {
+            if (!tracked) return;
+            for (int i = 0; i < chunks.length; i++) {
+                Chunk c = chunks[i];
+                if (c == null) continue;
+                int x0 = chunkX(i);
+                int y0 = chunkY(i);
+                for (int r = 0; r < CHUNK; r++) {
+                    long word = c.dirty[r];
+                    if (word == 0) continue;
+                    c.dirty[r] = 0;
+                    int rowStart = (y0 + r) * width + x0;
+                    while (word != 0) {
+                        action.accept(rowStart + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
                     }
                 }
             }
         }
 
-        private double[] buildInputs(Agent a) {
-            double[] in = new double[NN_INPUTS];
-
-            int nx1 = wrap(a.x + a.dir.dx);
-            int ny1 = wrap(a.y + a.dir.dy);
-            int nx2 = wrap(nx1 + a.dir.dx);
-            int ny2 = wrap(ny1 + a.dir.dy);
+        /** Row-major plant bitset, bit y * width + x; only for worlds of less than 2^31 cells. */
+        long[] copyPlants() {
+            long[] out = new long[(int) ((cellCount() + 63) >>> 6)];
+            for (int i = 0; i < chunks.length; i++) {
+                Chunk c = chunks[i];
+                if (c == null) continue;
+                int x0 = chunkX(i);
+                int y0 = chunkY(i);
+                int rows = Math.min(CHUNK, height - y0);
+                for (int r = 0; r < rows; r++) {
+                    long word = c.plants[r];
+                    if (word == 0) continue;
+                    long bit = (long) (y0 + r) * width + x0;
+                    int w = (int) (bit >>> 6);
+                    int shift = (int) bit & 63;
+                    out[w] |= word << shift;
+                    if (shift != 0 && word >>> (64 - shift) != 0) out[w + 1] |= word >>> (64 - shift);
+                }
+            }
+            return out;
+        }
 
-            Direction leftDir = a.dir.turnLeft();
-            Direction rightDir = a.dir.turnRight();
-            int lx = wrap(a.x + leftDir.dx);
-            int ly = wrap(a.y + leftDir.dy);
-            int rx = wrap(a.x + rightDir.dx);
-            int ry = wrap(a.y + rightDir.dy);
+        int chunkColumns() {
+            return chunksX;
+        }
 
-            int[] nearness = senseCell(nx1, ny1);
-            int[] front = senseCell(nx2, ny2);
-            int[] left = senseCell(lx, ly);
-            int[] right = senseCell(rx, ry);
+        /** Plant bits of row y in chunk column cx, bit x - 64 * cx per cell. */
+        long plantWord(int cx, int y) {
+            Chunk c = chunk(cx << CHUNK_SHIFT, y);
+            return c == null ? 0 : c.plants[y & MASK];
+        }
 
-            in[0] = nearness[0];
-            in[1] = nearness[1];
-            in[2] = nearness[2];
+        void setPlantWord(int cx, int y, long word) {
+            Chunk c = word != 0 ? chunkForWrite(cx << CHUNK_SHIFT, y) : chunk(cx << CHUNK_SHIFT, y);
+            if (c == null) return;
+            long changed = c.plants[y & MASK] ^ word;
+            if (changed == 0) return;
+            if (c.dirty != null) c.dirty[y & MASK] |= changed;
+            c.plants[y & MASK] = word;
+            if (stamped) {
+                long stamp = ++clock;
+                for (int t = 0; t < TILES_PER_ROW; t++) {
+                    if ((changed >>> (t << TILE_SHIFT) & 0xFF) != 0) {
+                        c.stamps[tile(cx << CHUNK_SHIFT | t << TILE_SHIFT, y)] = stamp;
+                    }
+                }
+            }
+        }
 
-            in[3] = front[0];
-            in[4] = front[1];
-            in[5] = front[2];
+        /** The bits of chunk column cx that are cells of the world, fewer than 64 in a last partial column. */
+        long columnMask(int cx) {
+            int cells = width - (cx << CHUNK_SHIFT);
+            return cells >= CHUNK ? -1L : (1L << cells) - 1;
+        }
 
-            in[6] = left[0];
-            in[7] = left[1];
-            in[8] = left[2];
+        /** Cells of row y in chunk column cx that hold an agent of any species. */
+        long agentWord(int cx, int y) {
+            Chunk c = chunk(cx << CHUNK_SHIFT, y);
+            if (c == null) return 0;
+            long bits = 0;
+            for (int s = 0; s < c.species.length; s++) {
+                bits |= c.speciesRow(s, y & MASK);
+            }
+            return bits;
+        }
 
-            in[9] = right[0];
-            in[10] = right[1];
-            in[11] = right[2];
+        /** Columns of row r of a chunk that hold a plant or an agent, one bit per column. */
+        long occupied(int chunk, int r) {
+            Chunk c = chunks[chunk];
+            if (c == null) return 0;
+            long bits = c.plants[r];
+            int rowOfBlocks = (r >>> BLOCK_SHIFT) * BLOCKS_PER_ROW;
+            int offset = (r & BLOCK_MASK) << BLOCK_SHIFT;
+            for (int b = 0; b < BLOCKS_PER_ROW; b++) {
+                int[] ids = c.agentIds[rowOfBlocks + b];
+                if (ids == null) continue;
+                for (int i = 0; i <= BLOCK_MASK; i++) {
+                    if (ids[offset + i] != EMPTY) bits |= 1L << (b << BLOCK_SHIFT | i);
+                }
+            }
+            return bits;
+        }
 
-            in[12] = a.energyNormalized();
-            in[13] = 1.0; // bias input
+        /** Indices of the chunks holding at least one plant, ascending. */
+        int[] plantChunks() {
+            int[] out = new int[16];
+            int n = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                Chunk c = chunks[i];
+                if (c == null) continue;
+                for (long word : c.plants) {
+                    if (word != 0) {
+                        if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                        out[n++] = i;
+                        break;
+                    }
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
 
-            return in;
+        void copyPlantRows(int chunk, long[] to, int offset) {
+            System.arraycopy(chunks[chunk].plants, 0, to, offset, CHUNK);
         }
 
-        private int[] senseCell(int x, int y) {
-            Cell c = grid[y][x];
-            int plants = c.plant ? 1 : 0;
-            int herb = 0;
-            int carn = 0;
-            if (c.agent != null) {
-                if (c.agent.species == Species.HERBIVORE) herb = 1;
-                else carn = 1;
-            }
-            return new int[]{plants, herb, carn};
+        void loadPlantRows(int chunk, long[] from, int offset) {
+            Chunk c = chunks[chunk];
+            if (c == null) chunks[chunk] = c = new Chunk(tracked, stamped);
+            System.arraycopy(from, offset, c.plants, 0, CHUNK);
         }
 
-        int countAgentsOfType(Species s) {
-            int count = 0;
-            for (Agent a : agents) {
-                if (a.alive && a.species == s) count++;
+        long countPlants() {
+            long count = 0;
+            for (Chunk c : chunks) {
+                if (c == null) continue;
+                for (long word : c.plants) {
+                    count += Long.bitCount(word);
+                }
             }
             return count;
         }
 
-        int countPlants() {
-            int count = 0;
-            for (int y = 0; y < size; y++) {
-                for (int x = 0; x < size; x++) {
-                    if (grid[y][x].plant) count++;
+        /** Frees agent id blocks and species bits without agents and chunks left empty; not concurrently with writes. */
+        void compact() {
+            for (int i = 0; i < chunks.length; i++) {
+                Chunk c = chunks[i];
+                if (c == null) continue;
+                boolean vacant = true;
+                for (int b = 0; b < c.agentIds.length; b++) {
+                    int[] ids = c.agentIds[b];
+                    if (ids == null) continue;
+                    if (isVacant(ids)) c.agentIds[b] = null;
+                    else vacant = false;
+                }
+                if (vacant) Arrays.fill(c.species, null);
+                if (c.isEmpty()) {
+                    chunks[i] = null;
+                    if (stamped) freedAt = ++clock;
                 }
             }
-            return count;
         }
-    }
 
-    // ==== RENDERING PANEL ====
+        private static boolean isVacant(int[] ids) {
+            for (int id : ids) {
+                if (id != EMPTY) return false;
+            }
+            return true;
+        }
+
+        void clear() {
+            Arrays.fill(chunks, null);
+            if (stamped) freedAt = ++clock;
+        }
+    }
+
+    /**
+     * The live agents: a dense array for iteration, where every agent knows its slot,
+     * and the id table referenced from Grid.agentIds. Removal moves the last agent
+     * into the freed slot, so the deaths of a tick cost O(deaths), not a scan of the
+     * list per death. Ids of dead agents are reused.
+     */
+    private static final class AgentPool {
+        private Agent[] dense = new Agent[64];
+        private int size;
+        private Agent[] byId = new Agent[64];
+        private int[] freeIds = new int[64];
+        private int freeCount;
+        private int nextId;
+        final GenomeStore genomes = new GenomeStore();
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        Agent get(int slot) {
+            return dense[slot];
+        }
+
+        Agent byId(int id) {
+            return byId[id];
+        }
+
+        void add(Agent a) {
+            if (size == dense.length) {
+                dense = Arrays.copyOf(dense, size * 2);
+            }
+            a.slot = size;
+            dense[size++] = a;
+            a.brain = genomes.acquire(a.brain);
+        }
+
+        void remove(Agent a) {
+            genomes.release(a.brain);
+            Agent last = dense[--size];
+            dense[a.slot] = last;
+            last.slot = a.slot;
+            dense[size] = null;
+            a.slot = -1;
+        }
+
+        int takeId() {
+            if (freeCount > 0) {
+                return freeIds[--freeCount];
+            }
+            int id = nextId++;
+            if (id == byId.length) {
+                byId = Arrays.copyOf(byId, id * 2);
+            }
+            return id;
+        }
+
+        void putId(int id) {
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+            freeIds[freeCount++] = id;
+        }
+
+        // Distinct ids never share a slot, so stripe workers may bind and unbind concurrently
+        void bind(Agent a) {
+            byId[a.id] = a;
+        }
+
+        void unbind(int id) {
+            byId[id] = null;
+        }
+
+        int nextId() {
+            return nextId;
+        }
+
+        int[] freeIds() {
+            return Arrays.copyOf(freeIds, freeCount);
+        }
+
+        void restoreIds(int nextId, int[] free) {
+            this.nextId = nextId;
+            byId = new Agent[Math.max(64, nextId)];
+            freeCount = free.length;
+            freeIds = Arrays.copyOf(free, Math.max(64, freeCount));
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                dense[i].brain.refs = 0;
+            }
+            genomes.clear();
+            Arrays.fill(dense, 0, size, null);
+            size = 0;
+            Arrays.fill(byId, null);
+            freeCount = 0;
+            nextId = 0;
+        }
+    }
+
+    /**
+     * Off-heap alternative to AgentPool and the Agent objects: every agent is a 24-byte
+     * record in a MemorySegment, in iteration order (a dead record is swap-removed by the
+     * last one), with its energy and max energy in two int columns beside it so the
+     * per-tick energy passes sweep them densely. Ids map to record slots through an int
+     * segment, and genomes live in a further segment as reference-counted slots of their
+     * parameters. A population of any
+     * size costs a few heap objects, so heap use and collector work stay flat. Agent
+     * objects exist only as views for the renderer. Newborns are appended behind the
+     * records being stepped and join them in merge(), exactly where AgentPool puts them,
+     * so a seed gives the same run with either store. Not thread-safe.
+     */
+    private static final class AgentTable {
+        // Record layout
+        private static final long ID = 0, X = 4, Y = 8, GENOME = 12;
+        private static final long DEAD_INDEX = 16;  // position in the dead list, while dead
+        private static final long SPECIES = 20, DIR = 21, ALIVE = 22;
+        private static final long RECORD = 24;
+        // Genome slot layout: id, parent id, refs, then the parameters as in NeuralNetwork.params
+        private static final long GENOME_ID = 0, PARENT = 8, REFS = 16, PARAMS = 24;
+        private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT;
+        private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG;
+        private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT;
+        private static final ValueLayout.OfByte BYTE = ValueLayout.JAVA_BYTE;
+
+        private final int paramCount;
+        private final long genomeBytes;
+        private final float[] scratch;  // parameters of the genome being mutated or hashed
+        private MemorySegment records = allocate(64 * RECORD);
+        private MemorySegment energies = allocate(64 * 4L);     // by record slot
+        private MemorySegment maxEnergies = allocate(64 * 4L);  // by record slot
+        private MemorySegment slotOfId = allocate(64 * 4L);
+        private MemorySegment genomes;
+        private int size;     // records stepped in a tick
+        private int pending;  // newborns appended behind them, added by merge()
+        private int nextId;
+        private int[] freeIds = new int[64];
+        private int freeCount;
+        private int[] dead = new int[64];  // record slots of agents that died this tick
+        private int deadCount;
+        private int genomeSlots;           // slots ever used
+        private int[] freeGenomes = new int[64];
+        private int freeGenomeCount;
+        private int distinct;
+        private long created;
+
+        AgentTable(int paramCount) {
+            this.paramCount = paramCount;
+            this.genomeBytes = (PARAMS + 4L * paramCount + 7) & ~7L;
+            this.scratch = new float[paramCount];
+            this.genomes = allocate(64 * genomeBytes);
+        }
+
+        // Each segment gets its own automatic arena, so a replaced segment is freed once unreachable
+        private static MemorySegment allocate(long bytes) {
+            return Arena.ofAuto().allocate(bytes, 8);
+        }
+
+        private static MemorySegment grow(MemorySegment segment, long needed) {
+            if (needed <= segment.byteSize()) return segment;
+            MemorySegment bigger = allocate(Math.max(needed, segment.byteSize() * 2));
+            bigger.copyFrom(segment);
+            return bigger;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int id(int r) {
+            return records.get(INT, r * RECORD + ID);
+        }
+
+        int x(int r) {
+            return records.get(INT, r * RECORD + X);
+        }
+
+        int y(int r) {
+            return records.get(INT, r * RECORD + Y);
+        }
+
+        void moveTo(int r, int x, int y) {
+            records.set(INT, r * RECORD + X, x);
+            records.set(INT, r * RECORD + Y, y);
+        }
+
+        int energy(int r) {
+            return energies.getAtIndex(INT, r);
+        }
+
+        void setEnergy(int r, int energy) {
+            energies.setAtIndex(INT, r, energy);
+        }
+
+        int maxEnergy(int r) {
+            return maxEnergies.getAtIndex(INT, r);
+        }
+
+        /** Takes one unit of upkeep from every stepped record, in one sweep of the energy column. */
+        void payUpkeep() {
+            MemorySegment e = energies;
+            for (int r = 0, n = size; r < n; r++) {
+                e.setAtIndex(INT, r, e.getAtIndex(INT, r) - 1);
+            }
+        }
+
+        /** Caps every record's energy at its max energy, stepped records and newborns alike. */
+        void clampEnergy() {
+            MemorySegment e = energies, max = maxEnergies;
+            for (int r = 0, n = size + pending; r < n; r++) {
+                e.setAtIndex(INT, r, Math.min(e.getAtIndex(INT, r), max.getAtIndex(INT, r)));
+            }
+        }
+
+        int genome(int r) {
+            return records.get(INT, r * RECORD + GENOME);
+        }
+
+        Species species(int r) {
+            return Species.VALUES[records.get(BYTE, r * RECORD + SPECIES)];
+        }
+
+        Direction dir(int r) {
+            return Direction.VALUES[records.get(BYTE, r * RECORD + DIR)];
+        }
+
+        void setDir(int r, Direction dir) {
+            records.set(BYTE, r * RECORD + DIR, (byte) dir.ordinal());
+        }
+
+        boolean alive(int r) {
+            return records.get(BYTE, r * RECORD + ALIVE) != 0;
+        }
+
+        double energyNormalized(int r) {
+            return Math.max(0.0, Math.min(1.0, energy(r) / (double) maxEnergy(r)));
+        }
+
+        int slotOf(int id) {
+            return slotOfId.get(INT, 4L * id);
+        }
+
+        /** Same id order as AgentPool.takeId(): the last freed id first. */
+        int takeId() {
+            if (freeCount > 0) {
+                return freeIds[--freeCount];
+            }
+            int id = nextId++;
+            slotOfId = grow(slotOfId, 4L * nextId);
+            return id;
+        }
+
+        int nextId() {
+            return nextId;
+        }
+
+        int[] freeIds() {
+            return Arrays.copyOf(freeIds, freeCount);
+        }
+
+        void restoreIds(int nextId, int[] free) {
+            this.nextId = nextId;
+            slotOfId = grow(slotOfId, 4L * nextId);
+            freeCount = free.length;
+            freeIds = Arrays.copyOf(free, Math.max(64, freeCount));
+        }
+
+        /** Appends a newborn behind the stepped records; it takes one reference to genome. */
+        int append(int id, Species species, int x, int y, Direction dir, int energy, int maxEnergy, int genome) {
+            int r = size + pending++;
+            records = grow(records, (r + 1) * RECORD);
+            energies = grow(energies, (r + 1) * 4L);
+            maxEnergies = grow(maxEnergies, (r + 1) * 4L);
+            long at = r * RECORD;
+            records.set(INT, at + ID, id);
+            records.set(INT, at + X, x);
+            records.set(INT, at + Y, y);
+            records.set(INT, at + GENOME, genome);
+            energies.setAtIndex(INT, r, energy);
+            maxEnergies.setAtIndex(INT, r, maxEnergy);
+            records.set(BYTE, at + SPECIES, (byte) species.ordinal());
+            records.set(BYTE, at + DIR, (byte) dir.ordinal());
+            records.set(BYTE, at + ALIVE, (byte) 1);
+            slotOfId.set(INT, 4L * id, r);
+            acquireGenome(genome);
+            return r;
+        }
+
+        /** Marks r dead and frees its id at once, like killAgent(); the record goes in merge(). */
+        void kill(int r) {
+            records.set(BYTE, r * RECORD + ALIVE, (byte) 0);
+            int id = id(r);
+            slotOfId.set(INT, 4L * id, -1);
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+            freeIds[freeCount++] = id;
+            if (deadCount == dead.length) {
+                dead = Arrays.copyOf(dead, deadCount * 2);
+            }
+            records.set(INT, r * RECORD + DEAD_INDEX, deadCount);
+            dead[deadCount++] = r;
+        }
+
+        /** Adds the newborns, then swap-removes the dead in order of death, as Environment.merge() does. */
+        void merge() {
+            size += pending;
+            pending = 0;
+            for (int k = 0; k < deadCount; k++) {
+                int r = dead[k];
+                releaseGenome(genome(r));
+                int last = --size;
+                if (last == r) continue;
+                MemorySegment.copy(records, last * RECORD, records, r * RECORD, RECORD);
+                energies.setAtIndex(INT, r, energies.getAtIndex(INT, last));
+                maxEnergies.setAtIndex(INT, r, maxEnergies.getAtIndex(INT, last));
+                if (alive(r)) {
+                    slotOfId.set(INT, 4L * id(r), r);
+                } else {
+                    dead[records.get(INT, r * RECORD + DEAD_INDEX)] = r;
+                }
+            }
+            deadCount = 0;
+        }
+
+        void clear() {
+            size = pending = deadCount = 0;
+            nextId = freeCount = 0;
+            genomeSlots = freeGenomeCount = distinct = 0;
+            created = 0;
+        }
+
+        /** A view of record r for rendering; its brain is null. */
+        Agent view(int r) {
+            Agent a = new Agent(species(r), x(r), y(r), dir(r), energy(r), maxEnergy(r), null);
+            a.id = id(r);
+            return a;
+        }
+
+        // ---- Genomes ----
+
+        /** Stores a genome with no references yet and returns its slot. */
+        int newGenome(float[] params, long id, long parentId) {
+            int g;
+            if (freeGenomeCount > 0) {
+                g = freeGenomes[--freeGenomeCount];
+            } else {
+                g = genomeSlots++;
+                genomes = grow(genomes, genomeSlots * genomeBytes);
+            }
+            long at = g * genomeBytes;
+            genomes.set(LONG, at + GENOME_ID, id);
+            genomes.set(LONG, at + PARENT, parentId);
+            genomes.set(INT, at + REFS, 0);
+            MemorySegment.copy(params, 0, genomes, FLOAT, at + PARAMS, paramCount);
+            created++;
+            return g;
+        }
+
+        private void acquireGenome(int g) {
+            long at = g * genomeBytes + REFS;
+            int refs = genomes.get(INT, at);
+            if (refs == 0) distinct++;
+            genomes.set(INT, at, refs + 1);
+        }
+
+        private void releaseGenome(int g) {
+            long at = g * genomeBytes + REFS;
+            int refs = genomes.get(INT, at) - 1;
+            genomes.set(INT, at, refs);
+            if (refs == 0) {
+                distinct--;
+                if (freeGenomeCount == freeGenomes.length) {
+                    freeGenomes = Arrays.copyOf(freeGenomes, freeGenomeCount * 2);
+                }
+                freeGenomes[freeGenomeCount++] = g;
+            }
+        }
+
+        int distinctGenomes() {
+            return distinct;
+        }
+
+        long createdGenomes() {
+            return created;
+        }
+
+        int genomeSlots() {
+            return genomeSlots;
+        }
+
+        /** The genome as a NeuralNetwork, for snapshots. */
+        NeuralNetwork brain(int g) {
+            float[] params = new float[paramCount];
+            MemorySegment.copy(genomes, FLOAT, g * genomeBytes + PARAMS, params, 0, paramCount);
+            return new NeuralNetwork(params, genomes.get(LONG, g * genomeBytes + PARENT));
+        }
+
+        long genomeHash(int g) {
+            MemorySegment.copy(genomes, FLOAT, g * genomeBytes + PARAMS, scratch, 0, paramCount);
+            return NeuralNetwork.hash(scratch);
+        }
+
+        /** NeuralNetwork.decide() on the genome of record r, with the same arithmetic. */
+        ActionType decide(int r, double[] in) {
+            long base = genome(r) * genomeBytes + PARAMS;
+            int inputs = paramCount / NN_OUTPUTS - 1;
+            int biasOffset = inputs * NN_OUTPUTS;
+            double best = Double.NEGATIVE_INFINITY;
+            int bestIndex = 0;
+            for (int i = 0; i < NN_OUTPUTS; i++) {
+                double sum = genomes.get(FLOAT, base + 4L * (biasOffset + i));
+                for (int j = 0; j < inputs; j++) {
+                    sum += genomes.get(FLOAT, base + 4L * (j * NN_OUTPUTS + i)) * in[j];
+                }
+                if (sum > best) {
+                    best = sum;
+                    bestIndex = i;
+                }
+            }
+            return ActionType.VALUES[bestIndex];
+        }
+
+        /**
+         * The slot of a child of genome g, drawing from rnd exactly like
+         * NeuralNetwork.copyWithMutation(); g itself if nothing changes.
+         */
+        int mutate(int g, RandomGenerator rnd, double std, double rate) {
+            if (std == 0 || rate <= 0) return g;
+            long at = g * genomeBytes;
+            long parentId = genomes.get(LONG, at + GENOME_ID);
+            float[] p = scratch;
+            MemorySegment.copy(genomes, FLOAT, at + PARAMS, p, 0, paramCount);
+            long childId;
+            if (rate < 1) {
+                double logKeep = Math.log1p(-rate);
+                boolean changed = false;
+                childId = parentId;
+                long i = -1;
+                while (true) {
+                    i += 1 + (long) (Math.log(1.0 - rnd.nextDouble()) / logKeep);
+                    if (i >= paramCount) break;
+                    int k = (int) i;
+                    float old = p[k];
+                    p[k] = (float) (old + rnd.nextGaussian() * std);
+                    childId += NeuralNetwork.paramHash(k, p[k]) - NeuralNetwork.paramHash(k, old);
+                    changed = true;
+                }
+                if (!changed) return g;
+            } else {
+                int biasOffset = paramCount - NN_OUTPUTS;
+                for (int i = 0; i < NN_OUTPUTS; i++) {
+                    p[biasOffset + i] = (float) (p[biasOffset + i] + rnd.nextGaussian() * std);
+                    for (int j = 0; j < biasOffset / NN_OUTPUTS; j++) {
+                        int w = j * NN_OUTPUTS + i;
+                        p[w] = (float) (p[w] + rnd.nextGaussian() * std);
+                    }
+                }
+                childId = NeuralNetwork.genomeId(p);
+            }
+            return newGenome(p, childId, parentId);
+        }
+    }
+
+    /**
+     * Per-thread state of the agent tick: reusable buffers, so sensing, decision
+     * and reproduction do not allocate, plus the random stream and the
+     * births/deaths of the rows this context is stepping.
+     */
+    private static class TickScratch {
+        final double[] inputs;
+        final int[] freeNeighbours = new int[8];  // (dy + 1) * 3 + dx + 1
+        final List<Agent> newborns = new ArrayList<>();
+        final List<Agent> dead = new ArrayList<>();
+        final List<Agent> spare = new ArrayList<>();  // objects of agents dead in earlier ticks
+        RandomGenerator rnd;
+
+        // Counter changes made by this context, folded into Environment after the step
+        int herbivoreDelta, carnivoreDelta;
+        long plantDelta;
+        int births, deaths, kills;
+        final int[] actions = new int[ActionType.VALUES.length];
+        final int[] energyBins = new int[ENERGY_BINS];
+        final long[] energySums = new long[Species.values().length];
+
+        // Batched decisions, sized on first use
+        Agent[] batchAgents;
+        NeuralNetwork[] batchBrains;
+        double[] batchInputs;
+        ActionType[] batchActions;
+        final double[] batchSums = new double[NN_OUTPUTS];
+
+        // Partitioned step only: stripe rows, its agents and ids reserved for births
+        int rowFrom, rowTo;
+        Agent[] bucket = new Agent[16];
+        int bucketSize;
+        int[] reservedIds;
+        int reservedCount, reservedUsed;
+        int[] releasedIds;
+        int releasedCount;
+        long[] cells;  // sharded step: bucket cells, sorted
+
+        TickScratch(RandomGenerator rnd, int inputs) {
+            this.rnd = rnd;
+            this.inputs = new double[inputs];
+        }
+
+        void countAgent(Species s, int delta) {
+            if (s == Species.HERBIVORE) herbivoreDelta += delta;
+            else carnivoreDelta += delta;
+        }
+
+        void addToBucket(Agent a) {
+            if (bucketSize == bucket.length) {
+                bucket = Arrays.copyOf(bucket, bucketSize * 2);
+            }
+            bucket[bucketSize++] = a;
+        }
+
+        // Dead objects are reused only after their tick, when nothing refers to them any more
+        Agent newAgent(Species species, int x, int y, Direction dir, int energy, int maxEnergy, NeuralNetwork brain) {
+            if (spare.isEmpty()) {
+                return new Agent(species, x, y, dir, energy, maxEnergy, brain);
+            }
+            Agent a = spare.removeLast();
+            a.reset(species, x, y, dir, energy, maxEnergy, brain);
+            return a;
+        }
+    }
+
+    private enum StepMode {
+        SEQUENTIAL,  // original single-threaded shuffle over all agents
+        PARTITIONED  // stripes of rows, even and odd stripes stepped in two parallel phases
+    }
+
+    /** Counters of an Environment after its last step; births, deaths and kills are per tick. */
+    private record Stats(long tick, int herbivores, int carnivores, long plants,
+                         int births, int deaths, int kills) {
+    }
+
+    private enum AgentStore {
+        HEAP,    // Agent objects in an AgentPool
+        OFFHEAP  // fixed-size records in MemorySegments (AgentTable), sequential step only
+    }
+
+    private enum PlantGrowth {
+        SCAN,  // one random draw per free cell
+        SKIP   // geometric jumps between growth events, one draw per event
+    }
+
+    /**
+     * Horizontal stripes of the torus for the partitioned step.
+     * An agent reads up to readRows rows away from its own (its sensors, or the
+     * cells around it after a move) and writes up to WRITE_ROWS rows away (a child
+     * next to the cell it just moved to), so stripes of one phase never touch the
+     * same cells as long as every stripe is at least WRITE_ROWS + readRows high
+     * and the stripe count is even. Every grid row has plant words of its own, so
+     * concurrently written rows never share a word.
+     * The layout depends only on the grid and the sensors, never on the thread count.
+     */
+    private static class StripeLayout {
+        private static final int TARGET_HEIGHT = 8;
+        private static final int MAX_STRIPES = 512;  // tall worlds: per-stripe overhead would outweigh the work
+        static final int WRITE_ROWS = 2;
+
+        final int count;
+        final int[] rowFrom;
+        final int[] rowTo;
+        final int[] stripeOfRow;
+
+        StripeLayout(int height, int readRows) {
+            int minHeight = WRITE_ROWS + readRows;
+            int n = Math.min(height / Math.max(TARGET_HEIGHT, minHeight), MAX_STRIPES);
+            if (n < 2) n = height / minHeight;
+            n &= ~1;
+            if (n < 2) n = 1;
+            count = n;
+            rowFrom = new int[n];
+            rowTo = new int[n];
+            stripeOfRow = new int[height];
+            int base = height / n;
+            int extra = height % n;
+            int row = 0;
+            for (int i = 0; i < n; i++) {
+                rowFrom[i] = row;
+                row += base + (i < extra ? 1 : 0);
+                rowTo[i] = row;
+                Arrays.fill(stripeOfRow, rowFrom[i], rowTo[i], i);
+            }
+        }
+    }
+
+    private static class Environment {
+        private static final int POPULATION_BAND = 64;  // rows of a sharded world's initial population stream
+        private static final EventType STEP_EVENT = EventType.getEventType(StepEvent.class);
+
+        private final int width, height;
+        private final Grid grid;
+        private final AgentPool agents = new AgentPool();
+        private final SplittableRandom rnd;  // initial population, seeded from SimConfig.seed; steps use tickRandom()
+        private final SimConfig config;
+        private final SensorLayout sensors;
+        private final TickScratch scratch;
+        private final boolean memo;  // memoized decisions, sequential unbatched step only
+        private final AgentTable table;  // off-heap agents instead of the pool; null for AgentStore.HEAP
+        private long memoLookups, memoUnsensed, memoUnevaluated;
+
+        // Live counters, updated at every mutation point instead of rescanning
+        private long tick;
+        private int herbivores, carnivores;
+        private long plants;
+        private int lastBirths, lastDeaths, lastKills;
+        private final int[] lastActions = new int[ActionType.VALUES.length];
+        private final int[] lastEnergyBins = new int[ENERGY_BINS];
+        private final long[] lastEnergySums = new long[Species.values().length];
+        private final StepProfile profile = new StepProfile();
+
+        // Partitioned step, created on first use
+        private StripeLayout stripes;
+        private TickScratch[] stripeScratch;
+        private int stripeFrom, stripeTo;  // the stripes stepped here: all, or those of this shard
+        private ForkJoinPool pool;
+
+        // Sharded step (joinShards): the rows this shard owns, and neighbour rows copied in for one phase
+        private ShardPeer shard;
+        private int ownFrom, ownTo;
+        private final List<Agent> ghosts = new ArrayList<>();
+        private final BitSet ghostRows = new BitSet();
+
+        Environment(SimConfig config) {
+            this.width = config.width;
+            this.height = config.height;
+            this.config = config;
+            this.memo = config.memoize && config.stepMode == StepMode.SEQUENTIAL && config.decisionBatch <= 1;
+            this.grid = new Grid(width, height, memo);
+            this.sensors = SensorLayout.parse(config.sensors);
+            sensors.checkFits(width, height);
+            this.rnd = new SplittableRandom(config.seed);
+            this.scratch = new TickScratch(rnd, sensors.inputs());
+            this.ownTo = height;
+            if (config.agentStore == AgentStore.OFFHEAP) {
+                if (config.stepMode != StepMode.SEQUENTIAL || config.decisionBatch > 1 || config.memoize) {
+                    throw new IllegalArgumentException(
+                            "The off-heap agent store runs the sequential step without batches or memoization");
+                }
+                table = new AgentTable(NeuralNetwork.paramCount(sensors.inputs()));
+            } else {
+                table = null;
+            }
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        /** Chunks of the sparse grid that currently hold memory. */
+        int allocatedChunks() {
+            return grid.allocatedChunks();
+        }
+
+        long getTick() {
+            return tick;
+        }
+
+        boolean hasPlant(int x, int y) {
+            return grid.hasPlant(x, y);
+        }
+
+        /** The agent in a cell; with the off-heap store a detached view without a brain. */
+        Agent agentAt(int x, int y) {
+            int id = grid.agentId(x, y);
+            if (id == Grid.EMPTY) return null;
+            return table != null ? table.view(table.slotOf(id)) : agents.byId(id);
+        }
+
+        int agentCount() {
+            return table != null ? table.size() : agents.size();
+        }
+
+        /** Genomes used by at least one agent. */
+        int distinctGenomes() {
+            return table != null ? table.distinctGenomes() : agents.genomes.distinct();
+        }
+
+        /** Genomes created so far, including those no agent uses any more. */
+        long createdGenomes() {
+            return table != null ? table.createdGenomes() : agents.genomes.created();
+        }
+
+        private void register(Agent a, TickScratch ctx) {
+            // Stripe workers must not touch the shared free list
+            a.id = ctx.reservedIds != null ? ctx.reservedIds[ctx.reservedUsed++] : agents.takeId();
+            agents.bind(a);
+        }
+
+        private void release(Agent a, TickScratch ctx) {
+            agents.unbind(a.id);
+            if (ctx.reservedIds != null) {
+                if (ctx.releasedCount == ctx.releasedIds.length) {
+                    ctx.releasedIds = Arrays.copyOf(ctx.releasedIds, ctx.releasedCount * 2);
+                }
+                ctx.releasedIds[ctx.releasedCount++] = a.id;
+            } else {
+                agents.putId(a.id);
+            }
+        }
+
+        void initializeDefaultPopulation() {
+            agents.clear();
+            if (table != null) table.clear();
+            grid.clear();
+            tick = 0;
+            herbivores = carnivores = 0;
+            lastBirths = lastDeaths = lastKills = 0;
+
+            if (shard == null) {
+                populate(rnd, 0, height, config.initialPlants, config.initialHerbivores, config.initialCarnivores);
+            } else {
+                // Every band of rows draws its share of the population from a stream of its own,
+                // so a shard only generates the bands it overlaps and every split of the world
+                // starts from the same population
+                for (int from = ownFrom - ownFrom % POPULATION_BAND; from < ownTo; from += POPULATION_BAND) {
+                    int to = Math.min(height, from + POPULATION_BAND);
+                    populate(bandRandom(from / POPULATION_BAND), from, to, bandShare(config.initialPlants, from, to),
+                            bandShare(config.initialHerbivores, from, to), bandShare(config.initialCarnivores, from, to));
+                }
+            }
+            plants = grid.countPlants();
+            if (table != null) table.merge();
+        }
+
+        // Places plants, then herbivores, then carnivores at random in rows [rowFrom, rowTo)
+        private void populate(RandomGenerator rnd, int rowFrom, int rowTo, int plantCount, int herbivoreCount,
+                              int carnivoreCount) {
+            int rows = rowTo - rowFrom;
+            // Cells taken by agents of the band's rows another shard owns
+            Set<Long> elsewhere = rowFrom < ownFrom || rowTo > ownTo ? new HashSet<>() : null;
+
+            // Initial plants
+            for (int i = 0; i < plantCount; i++) {
+                int x = rnd.nextInt(width);
+                int y = rowFrom + rnd.nextInt(rows);
+                if (owns(y)) grid.setPlant(x, y);
+            }
+
+            // Herbivores
+            for (int i = 0; i < herbivoreCount; i++) {
+                placeRandomAgent(
+                        Species.HERBIVORE,
+                        config.initialEnergyHerb,
+                        config.baseMaxEnergyHerb,
+                        rnd, rowFrom, rows, elsewhere
+                );
+            }
+
+            // Carnivores
+            for (int i = 0; i < carnivoreCount; i++) {
+                placeRandomAgent(
+                        Species.CARNIVORE,
+                        config.initialEnergyCarn,
+                        config.baseMaxEnergyCarn,
+                        rnd, rowFrom, rows, elsewhere
+                );
+            }
+        }
+
+        // The part of count that falls in rows [from, to), so the bands' shares add up to count
+        private int bandShare(int count, int from, int to) {
+            return (int) ((long) count * to / height - (long) count * from / height);
+        }
+
+        // Initial population stream of one band of a sharded world; the complemented seed keeps
+        // it apart from the tick streams
+        private SplittableRandom bandRandom(int band) {
+            return new SplittableRandom(mixSeed(~config.seed + (band + 1) * 0x9E3779B97F4A7C15L));
+        }
+
+        private boolean owns(int y) {
+            return y >= ownFrom && y < ownTo;
+        }
+
+        private void placeRandomAgent(Species species, int energy, int maxEnergy, RandomGenerator rnd, int rowFrom,
+                                      int rows, Set<Long> elsewhere) {
+            for (int tries = 0; tries < 100; tries++) {
+                int x = rnd.nextInt(width);
+                int y = rowFrom + rnd.nextInt(rows);
+                if (!owns(y)) {
+                    if (elsewhere.add((long) y * width + x)) {
+                        // Another shard's agent: same draws, nothing kept
+                        rnd.nextInt(Direction.VALUES.length);
+                        NeuralNetwork.randomParams(sensors.inputs(), rnd);
+                        return;
+                    }
+                    continue;
+                }
+                if (grid.agentId(x, y) == Grid.EMPTY) {
+                    Direction dir = Direction.VALUES[rnd.nextInt(Direction.VALUES.length)];
+                    if (table != null) {
+                        float[] params = NeuralNetwork.randomParams(sensors.inputs(), rnd);
+                        int genome = table.newGenome(params, NeuralNetwork.genomeId(params), 0);
+                        int id = table.takeId();
+                        table.append(id, species, x, y, dir, energy, maxEnergy, genome);
+                        grid.putAgent(x, y, id, species);
+                        if (species == Species.HERBIVORE) herbivores++;
+                        else carnivores++;
+                        return;
+                    }
+                    NeuralNetwork brain = new NeuralNetwork(sensors.inputs(), rnd);
+                    Agent a = new Agent(species, x, y, dir, energy, maxEnergy, brain);
+                    register(a, scratch);
+                    grid.putAgent(x, y, a.id, species);
+                    agents.add(a);
+                    if (species == Species.HERBIVORE) herbivores++;
+                    else carnivores++;
+                    return;
+                }
+            }
+        }
+
+        int wrapX(int x) {
+            if (x < 0) return x + width;
+            if (x >= width) return x - width;
+            return x;
+        }
+
+        int wrapY(int y) {
+            if (y < 0) return y + height;
+            if (y >= height) return y - height;
+            return y;
+        }
+
+        void step() {
+            // No event object at all while no recording has alife.Step enabled
+            StepEvent event = STEP_EVENT.isEnabled() ? new StepEvent() : null;
+            if (event != null) event.begin();
+            profile.begin();
+            lastBirths = lastDeaths = lastKills = 0;
+            Arrays.fill(lastActions, 0);
+            Arrays.fill(lastEnergyBins, 0);
+            Arrays.fill(lastEnergySums, 0);
+            if (config.stepMode == StepMode.PARTITIONED) {
+                if (shard != null) stepSharded();
+                else stepPartitioned();
+                for (TickScratch ctx : stripeScratch) {
+                    foldCounters(ctx);
+                }
+            } else if (table != null) {
+                stepTable();
+                foldCounters(scratch);
+            } else {
+                stepSequential();
+                foldCounters(scratch);
+            }
+            tick++;
+            profile.endStep();
+
+            if (event != null && event.shouldCommit()) {
+                event.tick = tick;
+                event.agents = agentCount();
+                event.shuffle = profile.lastNanos[StepPhase.SHUFFLE.ordinal()];
+                event.agentLoop = profile.lastNanos[StepPhase.AGENTS.ordinal()];
+                event.merge = profile.lastNanos[StepPhase.MERGE.ordinal()];
+                event.plants = profile.lastNanos[StepPhase.PLANTS.ordinal()];
+                long allocated = 0;
+                for (long b : profile.lastBytes) allocated += b;
+                event.allocated = allocated;
+                event.commit();
+            }
+        }
+
+        StepProfile profile() {
+            return profile;
+        }
+
+        private void foldCounters(TickScratch ctx) {
+            herbivores += ctx.herbivoreDelta;
+            carnivores += ctx.carnivoreDelta;
+            plants += ctx.plantDelta;
+            lastBirths += ctx.births;
+            lastDeaths += ctx.deaths;
+            lastKills += ctx.kills;
+            ctx.herbivoreDelta = ctx.carnivoreDelta = 0;
+            ctx.plantDelta = 0;
+            ctx.births = ctx.deaths = ctx.kills = 0;
+            for (int i = 0; i < lastActions.length; i++) {
+                lastActions[i] += ctx.actions[i];
+                ctx.actions[i] = 0;
+            }
+            for (int i = 0; i < ENERGY_BINS; i++) {
+                lastEnergyBins[i] += ctx.energyBins[i];
+                ctx.energyBins[i] = 0;
+            }
+            for (int i = 0; i < lastEnergySums.length; i++) {
+                lastEnergySums[i] += ctx.energySums[i];
+                ctx.energySums[i] = 0;
+            }
+        }
+
+        /** Starts recording changed cells for drainDirtyCells(); off by default (headless). */
+        void enableDirtyTracking() {
+            grid.enableDirtyTracking();
+        }
+
+        /** Passes every cell changed since the previous call to action and forgets them. */
+        void drainDirtyCells(IntConsumer action) {
+            grid.drainDirty(action);
+        }
+
+        /** Row-major plant bitset, bit y * width + x; only for worlds of less than 2^31 cells. */
+        long[] copyPlants() {
+            return grid.copyPlants();
+        }
+
+        Stats stats() {
+            return new Stats(tick, herbivores, carnivores, plants, lastBirths, lastDeaths, lastKills);
+        }
+
+        /** Copies how often each ActionType was chosen in the last step into out. */
+        void lastActions(int[] out) {
+            System.arraycopy(lastActions, 0, out, 0, lastActions.length);
+        }
+
+        /**
+         * Copies the energy histogram of the last step: agents that survived their upkeep,
+         * per tenth of their own max energy, sampled right after the upkeep, and the sum of
+         * their energy per species ordinal. Sampling in the step avoids a second pass over
+         * all agents.
+         */
+        void lastEnergy(int[] bins, long[] sums) {
+            System.arraycopy(lastEnergyBins, 0, bins, 0, ENERGY_BINS);
+            System.arraycopy(lastEnergySums, 0, sums, 0, lastEnergySums.length);
+        }
+
+        // Stream of one step, a function of seed and tick only: a restored run draws the same
+        // numbers as an uninterrupted one. The seed is mixed, since SplittableRandom streams of
+        // seeds a multiple of its gamma apart would overlap.
+        private SplittableRandom tickRandom() {
+            return new SplittableRandom(mixSeed(config.seed + (tick + 1) * 0x9E3779B97F4A7C15L));
+        }
+
+        // SplitMix64's finalizer
+        private static long mixSeed(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        /**
+         * Copies the state between two steps without disturbing the run. Brains are
+         * immutable and shared, not copied.
+         */
+        EnvironmentState captureState() {
+            if (table != null) return captureTable();
+            int n = agents.size();
+            EnvironmentState s = new EnvironmentState(config.copy(), width, height, n);
+            s.tick = tick;
+            s.herbivores = herbivores;
+            s.carnivores = carnivores;
+            s.plantCount = plants;
+            s.lastBirths = lastBirths;
+            s.lastDeaths = lastDeaths;
+            s.lastKills = lastKills;
+            s.nextId = agents.nextId();
+            s.freeIds = agents.freeIds();
+            s.plantChunks = grid.plantChunks();
+            s.plants = new long[s.plantChunks.length * Grid.CHUNK];
+            for (int k = 0; k < s.plantChunks.length; k++) {
+                grid.copyPlantRows(s.plantChunks[k], s.plants, k * Grid.CHUNK);
+            }
+
+            // Brains shared by several agents (mutation 0) are stored once
+            IdentityHashMap<NeuralNetwork, Integer> brainIndex = new IdentityHashMap<>();
+            List<NeuralNetwork> brains = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                Agent a = agents.get(i);
+                s.ids[i] = a.id;
+                s.species[i] = (byte) a.species.ordinal();
+                s.dirs[i] = (byte) a.dir.ordinal();
+                s.xs[i] = a.x;
+                s.ys[i] = a.y;
+                s.energy[i] = a.energy;
+                s.maxEnergy[i] = a.maxEnergy;
+                Integer b = brainIndex.get(a.brain);
+                if (b == null) {
+                    b = brains.size();
+                    brainIndex.put(a.brain, b);
+                    brains.add(a.brain);
+                }
+                s.brainOf[i] = b;
+            }
+            s.brains = brains.toArray(new NeuralNetwork[0]);
+            return s;
+        }
+
+        private EnvironmentState captureTable() {
+            AgentTable t = table;
+            int n = t.size();
+            EnvironmentState s = new EnvironmentState(config.copy(), width, height, n);
+            s.tick = tick;
+            s.herbivores = herbivores;
+            s.carnivores = carnivores;
+            s.plantCount = plants;
+            s.lastBirths = lastBirths;
+            s.lastDeaths = lastDeaths;
+            s.lastKills = lastKills;
+            s.nextId = t.nextId();
+            s.freeIds = t.freeIds();
+            s.plantChunks = grid.plantChunks();
+            s.plants = new long[s.plantChunks.length * Grid.CHUNK];
+            for (int k = 0; k < s.plantChunks.length; k++) {
+                grid.copyPlantRows(s.plantChunks[k], s.plants, k * Grid.CHUNK);
+            }
+
+            int[] brainIndex = new int[t.genomeSlots()];
+            Arrays.fill(brainIndex, -1);
+            List<NeuralNetwork> brains = new ArrayList<>();
+            for (int r = 0; r < n; r++) {
+                s.ids[r] = t.id(r);
+                s.species[r] = (byte) t.species(r).ordinal();
+                s.dirs[r] = (byte) t.dir(r).ordinal();
+                s.xs[r] = t.x(r);
+                s.ys[r] = t.y(r);
+                s.energy[r] = t.energy(r);
+                s.maxEnergy[r] = t.maxEnergy(r);
+                int g = t.genome(r);
+                if (brainIndex[g] < 0) {
+                    brainIndex[g] = brains.size();
+                    brains.add(t.brain(g));
+                }
+                s.brainOf[r] = brainIndex[g];
+            }
+            s.brains = brains.toArray(new NeuralNetwork[0]);
+            return s;
+        }
+
+        /** Rebuilds an Environment from a captured state; config may differ from the captured one. */
+        static Environment restore(EnvironmentState s, SimConfig config) {
+            if (config.width != s.width || config.height != s.height) {
+                throw new IllegalArgumentException("Snapshot is " + s.width + "x" + s.height
+                        + ", config is " + config.width + "x" + config.height);
+            }
+            Environment env = new Environment(config);
+            for (NeuralNetwork brain : s.brains) {
+                if (brain.inputs != env.sensors.inputs()) {
+                    throw new IllegalArgumentException("Snapshot brains have " + brain.inputs
+                            + " inputs, sensors \"" + config.sensors + "\" give " + env.sensors.inputs());
+                }
+            }
+            env.tick = s.tick;
+            env.herbivores = s.herbivores;
+            env.carnivores = s.carnivores;
+            env.plants = s.plantCount;
+            env.lastBirths = s.lastBirths;
+            env.lastDeaths = s.lastDeaths;
+            env.lastKills = s.lastKills;
+            for (int k = 0; k < s.plantChunks.length; k++) {
+                env.grid.loadPlantRows(s.plantChunks[k], s.plants, k * Grid.CHUNK);
+            }
+
+            Species[] species = Species.values();
+            if (env.table != null) {
+                AgentTable t = env.table;
+                t.restoreIds(s.nextId, s.freeIds);
+                int[] genomes = new int[s.brains.length];
+                for (int b = 0; b < s.brains.length; b++) {
+                    NeuralNetwork brain = s.brains[b];
+                    genomes[b] = t.newGenome(brain.params, brain.id, brain.parentId);
+                }
+                for (int i = 0; i < s.agentCount; i++) {
+                    t.append(s.ids[i], species[s.species[i]], s.xs[i], s.ys[i], Direction.VALUES[s.dirs[i]],
+                            s.energy[i], s.maxEnergy[i], genomes[s.brainOf[i]]);
+                    env.grid.putAgent(s.xs[i], s.ys[i], s.ids[i], species[s.species[i]]);
+                }
+                t.merge();
+                return env;
+            }
+            env.agents.restoreIds(s.nextId, s.freeIds);
+            for (int i = 0; i < s.agentCount; i++) {
+                Agent a = new Agent(species[s.species[i]], s.xs[i], s.ys[i],
+                        Direction.VALUES[s.dirs[i]], s.energy[i], s.maxEnergy[i], s.brains[s.brainOf[i]]);
+                a.id = s.ids[i];
+                env.agents.bind(a);
+                env.agents.add(a);
+                env.grid.putAgent(a.x, a.y, a.id, a.species);
+            }
+            return env;
+        }
+
+        /** Stops the worker threads of the partitioned step, if any. */
+        void shutdown() {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+        }
+
+        private void stepSequential() {
+            scratch.rnd = tickRandom();
+            profile.end(StepPhase.SHUFFLE);
+
+            tickAgents(agents.dense, agents.size(), scratch);
+            profile.end(StepPhase.AGENTS);
+
+            merge(scratch);
+            compactGrid();
+            profile.end(StepPhase.MERGE);
+
+            growPlants(0, height, scratch);
+            profile.end(StepPhase.PLANTS);
+        }
+
+        // ---- The sequential step on AgentTable records, mirroring the Agent methods above ----
+
+        private void stepTable() {
+            scratch.rnd = tickRandom();
+            profile.end(StepPhase.SHUFFLE);
+
+            table.payUpkeep();
+            tickRecords(scratch);
+            table.clampEnergy();
+            profile.end(StepPhase.AGENTS);
+
+            table.merge();
+            compactGrid();
+            profile.end(StepPhase.MERGE);
+
+            growPlants(0, height, scratch);
+            profile.end(StepPhase.PLANTS);
+        }
+
+        // Same visiting order as tickAgents(): records are stepped in place of the pool's array
+        private void tickRecords(TickScratch ctx) {
+            int count = table.size();
+            if (count == 0) return;
+            int next = ctx.rnd.nextInt(count);
+            int stride = coprimeStride(count, ctx.rnd);
+            int back = count - stride;
+            for (int i = 0; i < count; i++) {
+                int r = next;
+                next = next >= back ? next - back : next + stride;
+                if (!survivesUpkeep(r, ctx)) continue;
+
+                double[] in = ctx.inputs;
+                int x = table.x(r), y = table.y(r);
+                Direction dir = table.dir(r);
+                Species species = table.species(r);
+                int k = 0;
+                for (SensorLayout.Area area : sensors.areas) {
+                    k = putCounts(sense(x, y, dir, species, area), area, in, k);
+                }
+                in[k++] = table.energyNormalized(r);
+                in[k] = 1.0; // bias input
+                act(r, table.decide(r, in), ctx);
+            }
+        }
+
+        // table.payUpkeep() has taken the tick's upkeep from every record at once; one that ran
+        // out dies at its turn, as with Agent objects, since a hunter may reach it first and
+        // the order of deaths decides which ids are reused
+        private boolean survivesUpkeep(int r, TickScratch ctx) {
+            if (!table.alive(r)) return false;
+
+            int energy = table.energy(r);
+            if (grid.tracksDirty()) {
+                grid.markDirty(table.x(r), table.y(r));
+            }
+            if (energy <= 0) {
+                killRecord(r, ctx);
+                return false;
+            }
+            ctx.energyBins[Math.min(ENERGY_BINS - 1, energy * ENERGY_BINS / table.maxEnergy(r))]++;
+            ctx.energySums[table.species(r).ordinal()] += energy;
+            return true;
+        }
+
+        private void act(int r, ActionType act, TickScratch ctx) {
+            ctx.actions[act.ordinal()]++;
+            switch (act) {
+                case MOVE_FORWARD -> performMove(r, ctx);
+                case TURN_LEFT -> table.setDir(r, table.dir(r).turnLeft());
+                case TURN_RIGHT -> table.setDir(r, table.dir(r).turnRight());
+                case EAT -> performEat(r, ctx);
+            }
+
+            if (!table.alive(r)) return;
+
+            if (table.energy(r) >= table.maxEnergy(r) * REPRODUCTION_THRESHOLD) {
+                maybeReproduce(r, ctx);
+            }
+
+            if (table.energy(r) <= 0) {
+                killRecord(r, ctx);
+            }
+        }
+
+        private void killRecord(int r, TickScratch ctx) {
+            int x = table.x(r), y = table.y(r);
+            if (grid.agentId(x, y) == table.id(r)) {
+                grid.removeAgent(x, y);
+            }
+            table.kill(r);
+            ctx.countAgent(table.species(r), -1);
+            ctx.deaths++;
+        }
+
+        private void moveRecord(int r, int nx, int ny) {
+            grid.removeAgent(table.x(r), table.y(r));
+            table.moveTo(r, nx, ny);
+            grid.putAgent(nx, ny, table.id(r), table.species(r));
+        }
+
+        // Record slot of the agent in a cell, or -1
+        private int recordAt(int x, int y) {
+            int id = grid.agentId(x, y);
+            return id == Grid.EMPTY ? -1 : table.slotOf(id);
+        }
+
+        // Carnivore r kills and replaces the herbivore in (nx, ny). Here and in graze() gains are
+        // capped at max energy by table.clampEnergy() once the tick's turns are done; until
+        // then only act() and maybeReproduce() read the energy of an agent that had its turn.
+        private void hunt(int r, int prey, int nx, int ny, TickScratch ctx) {
+            killRecord(prey, ctx);
+            ctx.kills++;
+            moveRecord(r, nx, ny);
+            table.setEnergy(r, table.energy(r) + 2 * ENERGY_UNIT);
+        }
+
+        private void graze(int r, int x, int y, TickScratch ctx) {
+            grid.clearPlant(x, y);
+            ctx.plantDelta--;
+            table.setEnergy(r, table.energy(r) + ENERGY_UNIT);
+        }
+
+        private void performMove(int r, TickScratch ctx) {
+            Direction dir = table.dir(r);
+            int nx = wrapX(table.x(r) + dir.dx);
+            int ny = wrapY(table.y(r) + dir.dy);
+            int other = recordAt(nx, ny);
+            Species species = table.species(r);
+
+            if (other >= 0) {
+                if (species == Species.CARNIVORE && table.species(other) == Species.HERBIVORE) {
+                    hunt(r, other, nx, ny, ctx);
+                }
+                return;
+            }
+
+            moveRecord(r, nx, ny);
+
+            if (species == Species.HERBIVORE && grid.hasPlant(nx, ny)) {
+                graze(r, nx, ny, ctx);
+            }
+        }
+
+        private void performEat(int r, TickScratch ctx) {
+            Direction dir = table.dir(r);
+            int nx = wrapX(table.x(r) + dir.dx);
+            int ny = wrapY(table.y(r) + dir.dy);
+            int other = recordAt(nx, ny);
+
+            if (table.species(r) == Species.HERBIVORE) {
+                if (grid.hasPlant(nx, ny) && other < 0) {
+                    graze(r, nx, ny, ctx);
+                }
+            } else if (other >= 0 && table.species(other) == Species.HERBIVORE) {
+                hunt(r, other, nx, ny, ctx);
+            }
+        }
+
+        private void maybeReproduce(int r, TickScratch ctx) {
+            int x = table.x(r), y = table.y(r);
+            int[] free = ctx.freeNeighbours;
+            int freeCount = 0;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    if (dx == 0 && dy == 0) continue;
+                    if (grid.agentId(wrapX(x + dx), wrapY(y + dy)) == Grid.EMPTY) {
+                        free[freeCount++] = (dy + 1) * 3 + dx + 1;
+                    }
+                }
+            }
+            if (freeCount == 0) return;
+
+            int pos = free[ctx.rnd.nextInt(freeCount)];
+            int cx = wrapX(x + pos % 3 - 1);
+            int cy = wrapY(y + pos / 3 - 1);
+
+            int energy = Math.min(table.maxEnergy(r), table.energy(r));
+            int childEnergy = energy / 2;
+            table.setEnergy(r, energy - childEnergy);
+
+            if (childEnergy <= 0) return;
+
+            int genome = table.mutate(table.genome(r), ctx.rnd, config.mutationStd, config.mutationRate);
+            Direction dir = Direction.VALUES[ctx.rnd.nextInt(Direction.VALUES.length)];
+            Species species = table.species(r);
+            int id = table.takeId();
+            table.append(id, species, cx, cy, dir, childEnergy, table.maxEnergy(r), genome);
+            grid.putAgent(cx, cy, id, species);
+            ctx.countAgent(species, 1);
+            ctx.births++;
+        }
+
+        private void ensureStripes() {
+            if (stripes != null) return;
+            stripes = new StripeLayout(height, readRows());
+            stripeScratch = new TickScratch[stripes.count];
+            for (int i = 0; i < stripes.count; i++) {
+                TickScratch ctx = new TickScratch(null, sensors.inputs());
+                ctx.rowFrom = stripes.rowFrom[i];
+                ctx.rowTo = stripes.rowTo[i];
+                ctx.releasedIds = new int[16];
+                stripeScratch[i] = ctx;
+            }
+            stripeFrom = 0;
+            stripeTo = stripes.count;
+        }
+
+        // Rows away from its own an agent may read: its sensors, or the cells around it after a move
+        private int readRows() {
+            return Math.max(2, sensors.reach());
+        }
+
+        private void stepPartitioned() {
+            ensureStripes();
+
+            // Fresh streams per tick and stripe, split in stripe order: the draws of a stripe
+            // do not depend on how many threads step it or in which order stripes finish
+            SplittableRandom tickRnd = tickRandom();
+            for (TickScratch ctx : stripeScratch) {
+                ctx.rnd = tickRnd.split();
+            }
+
+            for (int i = 0, n = agents.size(); i < n; i++) {
+                Agent a = agents.get(i);
+                stripeScratch[stripes.stripeOfRow[a.y]].addToBucket(a);
+            }
+            profile.end(StepPhase.SHUFFLE);
+
+            for (int phase = 0; phase < 2; phase++) {
+                reserveIds(phase);
+                runPhase(phase, ctx -> tickAgents(ctx.bucket, ctx.bucketSize, ctx));
+                returnIds(phase);
+            }
+            profile.end(StepPhase.AGENTS);
+
+            mergeStripes();
+            compactGrid();
+            profile.end(StepPhase.MERGE);
+
+            for (int phase = 0; phase < 2; phase++) {
+                runPhase(phase, ctx -> growPlants(ctx.rowFrom, ctx.rowTo, ctx));
+            }
+            profile.end(StepPhase.PLANTS);
+        }
+
+        private void mergeStripes() {
+            // A stripe may kill a newborn of another stripe: all newborns go in before any removal
+            for (TickScratch ctx : stripeScratch) {
+                for (Agent a : ctx.newborns) {
+                    agents.add(a);
+                }
+                ctx.newborns.clear();
+                Arrays.fill(ctx.bucket, 0, ctx.bucketSize, null);
+                ctx.bucketSize = 0;
+            }
+            for (TickScratch ctx : stripeScratch) {
+                merge(ctx);
+            }
+        }
+
+        /**
+         * Makes this Environment one shard of a world split across several: it owns and
+         * steps the stripes of peer.index only and trades the rows along its borders with
+         * its neighbours twice per phase. Call before initializeDefaultPopulation().
+         */
+        void joinShards(ShardPeer peer) {
+            if (config.stepMode != StepMode.PARTITIONED) {
+                throw new IllegalArgumentException("Shards run the partitioned step");
+            }
+            ensureStripes();
+            if (peer.count > stripes.count) {
+                throw new IllegalArgumentException(peer.count + " shards for a world of " + stripes.count
+                        + " stripes; each shard needs one at least");
+            }
+            stripeFrom = peer.index * stripes.count / peer.count;
+            stripeTo = (peer.index + 1) * stripes.count / peer.count;
+            ownFrom = stripes.rowFrom[stripeFrom];
+            ownTo = stripes.rowTo[stripeTo - 1];
+            shard = peer;
+        }
+
+        /**
+         * The partitioned step on this shard's stripes. Before a phase each shard sends
+         * its neighbours copies of the rows their stripes of the phase read (ghosts);
+         * after it, they send back what they wrote there: plants eaten, ghosts killed,
+         * and agents that moved or were born there, which thereby change shard. Stripes
+         * of a border are stepped in different phases, so no row is written on both
+         * sides. Buckets are sorted by cell, so agents act in an order that depends on
+         * the world alone and every split of it runs the same simulation.
+         */
+        private void stepSharded() {
+            SplittableRandom tickRnd = tickRandom();
+            for (TickScratch ctx : stripeScratch) {
+                ctx.rnd = tickRnd.split();
+            }
+            for (int i = 0, n = agents.size(); i < n; i++) {
+                Agent a = agents.get(i);
+                stripeScratch[stripes.stripeOfRow[a.y]].addToBucket(a);
+            }
+            for (int s = stripeFrom; s < stripeTo; s++) {
+                sortBucket(stripeScratch[s]);
+            }
+            profile.end(StepPhase.SHUFFLE);
+
+            try {
+                for (int phase = 0; phase < 2; phase++) {
+                    if (shard.count > 1) exchangeGhosts(phase);
+                    reserveIds(phase);
+                    runPhase(phase, ctx -> tickAgents(ctx.bucket, ctx.bucketSize, ctx));
+                    returnIds(phase);
+                    if (shard.count > 1) exchangeWrites(phase);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            profile.end(StepPhase.AGENTS);
+
+            mergeStripes();
+            compactGrid();
+            profile.end(StepPhase.MERGE);
+
+            for (int phase = 0; phase < 2; phase++) {
+                runPhase(phase, ctx -> growPlants(ctx.rowFrom, ctx.rowTo, ctx));
+            }
+            profile.end(StepPhase.PLANTS);
+        }
+
+        // Row-major cell order; one agent per cell, so keys are distinct
+        private void sortBucket(TickScratch ctx) {
+            int n = ctx.bucketSize;
+            if (ctx.cells == null || ctx.cells.length < n) {
+                ctx.cells = new long[Math.max(16, n * 2)];
+            }
+            for (int i = 0; i < n; i++) {
+                Agent a = ctx.bucket[i];
+                ctx.cells[i] = (long) a.y * width + a.x;
+            }
+            Arrays.sort(ctx.cells, 0, n);
+            for (int i = 0; i < n; i++) {
+                long cell = ctx.cells[i];
+                ctx.bucket[i] = agents.byId(grid.agentId((int) (cell % width), (int) (cell / width)));
+            }
+        }
+
+        // The neighbours' stripes across this shard's upper and lower border
+        private int stripeAbove() {
+            return (stripeFrom - 1 + stripes.count) % stripes.count;
+        }
+
+        private int stripeBelow() {
+            return stripeTo % stripes.count;
+        }
+
+        private void exchangeGhosts(int phase) throws IOException {
+            int read = readRows();
+            int top = stripes.rowFrom[stripeFrom];
+            int bottom = stripes.rowTo[stripeTo - 1];
+            byte[] toDown = encodeRows((stripeBelow() & 1) == phase ? bottom - read : bottom, bottom);
+            byte[] toUp = encodeRows(top, (stripeAbove() & 1) == phase ? top + read : top);
+            byte[][] received = shard.exchange(toDown, toUp);
+            installGhosts(received[0]);
+            installGhosts(received[1]);
+        }
+
+        // Plants and agents (cell and species) of rows [from, to) for a neighbour's ghosts
+        private byte[] encodeRows(int from, int to) {
+            MessageBuilder m = new MessageBuilder();
+            m.putInt(to - from);
+            for (int y = from; y < to; y++) {
+                m.putInt(y);
+                int agentCount = 0;
+                for (int cx = 0; cx < grid.chunkColumns(); cx++) {
+                    m.putLong(grid.plantWord(cx, y));
+                    agentCount += Long.bitCount(grid.agentWord(cx, y));
+                }
+                m.putInt(agentCount);
+                for (int cx = 0; cx < grid.chunkColumns(); cx++) {
+                    for (long bits = grid.agentWord(cx, y); bits != 0; bits &= bits - 1) {
+                        int x = cx << Grid.CHUNK_SHIFT | Long.numberOfTrailingZeros(bits);
+                        m.putInt(x);
+                        m.putInt(agents.byId(grid.agentId(x, y)).species.ordinal());
+                    }
+                }
+            }
+            return m.toBytes();
+        }
+
+        private void installGhosts(byte[] message) {
+            ByteBuffer in = ByteBuffer.wrap(message);
+            for (int rows = in.getInt(); rows > 0; rows--) {
+                int y = in.getInt();
+                // A one-stripe neighbour between two stripes of this shard sends overlapping rows twice
+                boolean fresh = !ghostRows.get(y);
+                ghostRows.set(y);
+                for (int cx = 0; cx < grid.chunkColumns(); cx++) {
+                    long word = in.getLong();
+                    if (fresh) grid.setPlantWord(cx, y, word);
+                }
+                for (int n = in.getInt(); n > 0; n--) {
+                    int x = in.getInt();
+                    Species species = Species.VALUES[in.getInt()];
+                    if (!fresh) continue;
+                    Agent g = new Agent(species, x, y, Direction.NORTH, 0, 1, null);
+                    g.ghost = true;
+                    g.id = agents.takeId();
+                    agents.bind(g);
+                    grid.putAgent(x, y, g.id, species);
+                    ghosts.add(g);
+                }
+            }
+        }
+
+        private void exchangeWrites(int phase) throws IOException {
+            int below = stripes.rowFrom[stripeBelow()];
+            int above = stripes.rowTo[stripeAbove()];
+            int write = StripeLayout.WRITE_ROWS;
+            byte[] toDown = ((stripeTo - 1) & 1) == phase
+                    ? encodeWrites(below, below + write, stripeScratch[stripeTo - 1])
+                    : encodeWrites(below, below, null);
+            byte[] toUp = (stripeFrom & 1) == phase
+                    ? encodeWrites(above - write, above, stripeScratch[stripeFrom])
+                    : encodeWrites(above, above, null);
+            dropGhosts();
+            byte[][] received = shard.exchange(toDown, toUp);
+            applyWrites(received[0]);
+            applyWrites(received[1]);
+        }
+
+        /**
+         * What this phase wrote into a neighbour's rows [from, to): their plants, the
+         * ghosts killed there, and the full state of this shard's agents that moved or
+         * were born there, which leave through ctx, the stripe at that border.
+         */
+        private byte[] encodeWrites(int from, int to, TickScratch ctx) {
+            MessageBuilder m = new MessageBuilder();
+            m.putInt(to - from);
+            for (int y = from; y < to; y++) {
+                m.putInt(y);
+                for (int cx = 0; cx < grid.chunkColumns(); cx++) {
+                    m.putLong(grid.plantWord(cx, y));
+                }
+            }
+
+            int killed = 0;
+            for (Agent g : ghosts) {
+                if (!g.alive && g.y >= from && g.y < to) killed++;
+            }
+            m.putInt(killed);
+            for (Agent g : ghosts) {
+                if (!g.alive && g.y >= from && g.y < to) {
+                    m.putInt(g.x);
+                    m.putInt(g.y);
+                }
+            }
+
+            List<Agent> leaving = new ArrayList<>();
+            for (int y = from; y < to; y++) {
+                for (int cx = 0; cx < grid.chunkColumns(); cx++) {
+                    for (long bits = grid.agentWord(cx, y); bits != 0; bits &= bits - 1) {
+                        Agent a = agents.byId(grid.agentId(cx << Grid.CHUNK_SHIFT | Long.numberOfTrailingZeros(bits), y));
+                        if (!a.ghost) leaving.add(a);
+                    }
+                }
+            }
+            m.putInt(leaving.size());
+            for (Agent a : leaving) {
+                m.putInt(a.x);
+                m.putInt(a.y);
+                m.putInt(a.species.ordinal());
+                m.putInt(a.dir.ordinal());
+                m.putInt(a.energy);
+                m.putInt(a.maxEnergy);
+                m.putLong(a.brain.parentId);
+                for (float p : a.brain.params) {
+                    m.putFloat(p);
+                }
+                detach(a, ctx);
+            }
+            return m.toBytes();
+        }
+
+        private void dropGhosts() {
+            for (Agent g : ghosts) {
+                if (g.alive) grid.removeAgent(g.x, g.y);
+                agents.unbind(g.id);
+                agents.putId(g.id);
+            }
+            ghosts.clear();
+            for (int y = ghostRows.nextSetBit(0); y >= 0; y = ghostRows.nextSetBit(y + 1)) {
+                for (int cx = 0; cx < grid.chunkColumns(); cx++) {
+                    grid.setPlantWord(cx, y, 0);
+                }
+            }
+            ghostRows.clear();
+        }
+
+        // Takes the neighbour's writes into this shard's rows: they replace what was there
+        private void applyWrites(byte[] message) {
+            ByteBuffer in = ByteBuffer.wrap(message);
+            for (int rows = in.getInt(); rows > 0; rows--) {
+                int y = in.getInt();
+                for (int cx = 0; cx < grid.chunkColumns(); cx++) {
+                    grid.setPlantWord(cx, y, in.getLong());
+                }
+            }
+            for (int n = in.getInt(); n > 0; n--) {
+                int x = in.getInt();
+                int y = in.getInt();
+                // The neighbour counted the death
+                detach(agents.byId(grid.agentId(x, y)), stripeScratch[stripes.stripeOfRow[y]]);
+            }
+            int paramCount = NeuralNetwork.paramCount(sensors.inputs());
+            for (int n = in.getInt(); n > 0; n--) {
+                int x = in.getInt();
+                int y = in.getInt();
+                Species species = Species.VALUES[in.getInt()];
+                Direction dir = Direction.VALUES[in.getInt()];
+                int energy = in.getInt();
+                int maxEnergy = in.getInt();
+                long parentId = in.getLong();
+                float[] params = new float[paramCount];
+                for (int i = 0; i < paramCount; i++) {
+                    params[i] = in.getFloat();
+                }
+                // Joins the pool with this tick's newborns: it has acted already, or was just born
+                TickScratch ctx = stripeScratch[stripes.stripeOfRow[y]];
+                Agent a = ctx.newAgent(species, x, y, dir, energy, maxEnergy, new NeuralNetwork(params, parentId));
+                a.id = agents.takeId();
+                agents.bind(a);
+                grid.putAgent(x, y, a.id, species);
+                ctx.newborns.add(a);
+            }
+        }
+
+        // Takes an agent out of this shard without a death; merging ctx removes it from the pool
+        private void detach(Agent a, TickScratch ctx) {
+            grid.removeAgent(a.x, a.y);
+            agents.unbind(a.id);
+            agents.putId(a.id);
+            a.alive = false;
+            ctx.dead.add(a);
+        }
+
+        /**
+         * A hash of the agents and plants in this shard's rows. It adds up one hash per
+         * cell, so the sum over all shards is the same however the world is split; it is
+         * not comparable with stateHash().
+         */
+        long regionHash() {
+            long sum = 0;
+            for (int c = 0, n = grid.chunkCount(); c < n; c++) {
+                if (!grid.isAllocated(c)) continue;
+                int x0 = grid.chunkX(c);
+                int y0 = grid.chunkY(c);
+                for (int r = 0; r < Grid.CHUNK; r++) {
+                    int y = y0 + r;
+                    if (!owns(y)) continue;
+                    for (long bits = grid.occupied(c, r); bits != 0; bits &= bits - 1) {
+                        int x = x0 + Long.numberOfTrailingZeros(bits);
+                        long h = (long) y * width + x;
+                        h = 31 * h + (grid.hasPlant(x, y) ? 1 : 0);
+                        Agent a = agentAt(x, y);
+                        if (a != null) {
+                            h = 31 * h + a.species.ordinal();
+                            h = 31 * h + a.dir.ordinal();
+                            h = 31 * h + a.energy;
+                            h = 31 * h + a.brain.hash();
+                        }
+                        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+                        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+                        sum += h ^ (h >>> 31);
+                    }
+                }
+            }
+            return sum;
+        }
+
+        /**
+         * Moves the newborns of ctx into the pool and swap-removes its dead, whose
+         * objects become ctx's spares for later births. Newborns go in first, so one
+         * killed in its first tick leaves the pool as well.
+         */
+        private void merge(TickScratch ctx) {
+            for (Agent a : ctx.newborns) {
+                agents.add(a);
+            }
+            ctx.newborns.clear();
+            for (Agent a : ctx.dead) {
+                agents.remove(a);
+                ctx.spare.add(a);
+            }
+            ctx.dead.clear();
+        }
+
+        // Frees grid chunks emptied by deaths and grazing; a scan of all chunks, so not every tick
+        private void compactGrid() {
+            if ((tick + 1) % COMPACT_INTERVAL == 0) {
+                grid.compact();
+            }
+        }
+
+        // Every agent gives birth at most once per tick, so its stripe needs at most bucketSize ids
+        private void reserveIds(int phase) {
+            for (int s = firstStripe(phase); s < stripeTo; s += 2) {
+                TickScratch ctx = stripeScratch[s];
+                int need = ctx.bucketSize;
+                if (ctx.reservedIds == null || ctx.reservedIds.length < need) {
+                    ctx.reservedIds = new int[Math.max(16, need * 2)];
+                }
+                for (int i = 0; i < need; i++) {
+                    ctx.reservedIds[i] = agents.takeId();
+                }
+                ctx.reservedCount = need;
+                ctx.reservedUsed = 0;
+            }
+        }
+
+        private void returnIds(int phase) {
+            for (int s = firstStripe(phase); s < stripeTo; s += 2) {
+                TickScratch ctx = stripeScratch[s];
+                for (int i = ctx.reservedCount - 1; i >= ctx.reservedUsed; i--) {
+                    agents.putId(ctx.reservedIds[i]);
+                }
+                for (int i = 0; i < ctx.releasedCount; i++) {
+                    agents.putId(ctx.releasedIds[i]);
+                }
+                ctx.reservedCount = 0;
+                ctx.reservedUsed = 0;
+                ctx.releasedCount = 0;
+            }
+        }
+
+        private void runPhase(int phase, Consumer<TickScratch> body) {
+            int first = firstStripe(phase);
+            int phaseStripes = Math.max(0, (stripeTo - first + 1) / 2);
+            if (config.threads <= 1 || phaseStripes <= 1) {
+                for (int s = first; s < stripeTo; s += 2) {
+                    body.accept(stripeScratch[s]);
+                }
+                return;
+            }
+            if (pool == null) {
+                pool = new ForkJoinPool(config.threads);
+            }
+            pool.invoke(new PhaseTask(stripeScratch, first, 0, phaseStripes, body));
+        }
+
+        // Stripes of a phase have the parity of the phase
+        private int firstStripe(int phase) {
+            return stripeFrom + ((phase - stripeFrom) & 1);
+        }
+
+        private static int coprimeStride(int n, RandomGenerator rnd) {
+            if (n <= 2) return 1;
+            int stride = 1 + rnd.nextInt(n - 1);
+            while (gcd(stride, n) != 1) {
+                stride = stride == n - 1 ? 1 : stride + 1;
+            }
+            return stride;
+        }
+
+        private static int gcd(int a, int b) {
+            while (b != 0) {
+                int t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+
+        /**
+         * Steps items[0..count) in a random order: a random start and a random stride
+         * coprime to count visit every agent once, without shuffling the array.
+         */
+        private void tickAgents(Agent[] items, int count, TickScratch ctx) {
+            if (count == 0) return;
+            int next = ctx.rnd.nextInt(count);
+            int stride = coprimeStride(count, ctx.rnd);
+            int back = count - stride;  // next + stride - count, without overflow
+
+            int batch = config.decisionBatch;
+            if (batch <= 1) {
+                for (int i = 0; i < count; i++) {
+                    Agent a = items[next];
+                    next = next >= back ? next - back : next + stride;
+                    if (!payUpkeep(a, ctx)) continue;
+
+                    // Sense environment and choose action
+                    if (memo) {
+                        act(a, decideMemoized(a, ctx), ctx);
+                        continue;
+                    }
+                    buildInputs(a, ctx.inputs);
+                    act(a, a.brain.decide(ctx.inputs), ctx);
+                }
+                return;
+            }
+
+            int inputs = sensors.inputs();
+            if (ctx.batchAgents == null || ctx.batchAgents.length != batch) {
+                ctx.batchAgents = new Agent[batch];
+                ctx.batchBrains = new NeuralNetwork[batch];
+                ctx.batchInputs = new double[batch * inputs];
+                ctx.batchActions = new ActionType[batch];
+            }
+            Agent[] block = ctx.batchAgents;
+            double[] row = ctx.inputs;
+            for (int from = 0; from < count; from += batch) {
+                int to = Math.min(count, from + batch);
+
+                // Gather the inputs of the whole block, then evaluate all brains at once
+                int gathered = 0;
+                for (int i = from; i < to; i++) {
+                    Agent a = items[next];
+                    next = next >= back ? next - back : next + stride;
+                    if (!payUpkeep(a, ctx)) continue;
+                    buildInputs(a, row);
+                    System.arraycopy(row, 0, ctx.batchInputs, gathered * inputs, inputs);
+                    block[gathered] = a;
+                    ctx.batchBrains[gathered] = a.brain;
+                    gathered++;
+                }
+                NeuralNetwork.decideBatch(ctx.batchBrains, ctx.batchInputs, gathered, ctx.batchSums, ctx.batchActions);
+
+                for (int k = 0; k < gathered; k++) {
+                    // An earlier agent of the block may have eaten this one
+                    if (block[k].alive) {
+                        act(block[k], ctx.batchActions[k], ctx);
+                    }
+                    block[k] = null;
+                    ctx.batchBrains[k] = null;
+                }
+            }
+        }
+
+        /**
+         * The action decide() would choose, reusing what the agent computed last time:
+         * if it neither moved nor turned and no 8x8 tile within its sensor reach was
+         * written since, it does not sense at all; if the sensed counts equal the cached
+         * ones, it does not evaluate the brain on them. Either way only the energy input
+         * is new, and the cached sums of the other inputs are completed with it, so the
+         * result is exactly that of decide().
+         */
+        private ActionType decideMemoized(Agent a, TickScratch ctx) {
+            memoLookups++;
+            if (a.memoStamp >= 0 && a.x == a.memoX && a.y == a.memoY && a.dir == a.memoDir
+                    && grid.lastWrite(a.x, a.y, sensors.reach()) <= a.memoStamp) {
+                memoUnsensed++;
+            } else {
+                SensorLayout.Area[] areas = sensors.areas;
+                if (a.memoCounts == null || a.memoCounts.length != areas.length) {
+                    a.memoCounts = new long[areas.length];
+                    a.memoSums = new double[NN_OUTPUTS];
+                    a.memoStamp = -1;
+                }
+                boolean same = a.memoStamp >= 0;
+                for (int i = 0; i < areas.length; i++) {
+                    long counts = sense(a, areas[i]);
+                    same &= counts == a.memoCounts[i];
+                    a.memoCounts[i] = counts;
+                }
+                if (same) {
+                    memoUnevaluated++;
+                } else {
+                    int k = 0;
+                    for (int i = 0; i < areas.length; i++) {
+                        k = putCounts(a.memoCounts[i], areas[i], ctx.inputs, k);
+                    }
+                    a.brain.partialSums(ctx.inputs, a.memoSums);
+                }
+                a.memoStamp = grid.clock();
+                a.memoX = a.x;
+                a.memoY = a.y;
+                a.memoDir = a.dir;
+            }
+            return a.brain.finish(a.memoSums, a.energyNormalized());
+        }
+
+        /** Shares of memoized decisions made without sensing and without evaluating the brain; null if off. */
+        double[] memoRates() {
+            if (!memo) return null;
+            double n = Math.max(memoLookups, 1);
+            return new double[]{memoUnsensed / n, (memoUnsensed + memoUnevaluated) / n};
+        }
+
+        // Base energy cost per tick; false if the agent is (or now is) dead
+        private boolean payUpkeep(Agent a, TickScratch ctx) {
+            if (!a.alive) return false;
+
+            a.energy--;
+            if (grid.tracksDirty()) {
+                // Energy label and direction are drawn in the agent's cell
+                grid.markDirty(a.x, a.y);
+            }
+            if (a.energy <= 0) {
+                killAgent(a, ctx);
+                return false;
+            }
+            ctx.energyBins[Math.min(ENERGY_BINS - 1, a.energy * ENERGY_BINS / a.maxEnergy)]++;
+            ctx.energySums[a.species.ordinal()] += a.energy;
+            return true;
+        }
+
+        private void act(Agent a, ActionType act, TickScratch ctx) {
+            ctx.actions[act.ordinal()]++;
+            switch (act) {
+                case MOVE_FORWARD -> performMove(a, ctx);
+                case TURN_LEFT -> a.dir = a.dir.turnLeft();
+                case TURN_RIGHT -> a.dir = a.dir.turnRight();
+                case EAT -> performEat(a, ctx);
+            }
+
+            if (!a.alive) return;
+
+            // Reproduction
+            if (a.energy >= a.maxEnergy * REPRODUCTION_THRESHOLD) {
+                maybeReproduce(a, ctx);
+            }
+
+            // Death if energy exhausted after actions
+            if (a.energy <= 0) {
+                killAgent(a, ctx);
+            }
+        }
+
+        private void killAgent(Agent a, TickScratch ctx) {
+            a.alive = false;
+            if (grid.agentId(a.x, a.y) == a.id) {
+                grid.removeAgent(a.x, a.y);
+            }
+            // A ghost's shard removes the original when the phase's writes come back
+            if (!a.ghost) {
+                release(a, ctx);
+                ctx.dead.add(a);
+            }
+            ctx.countAgent(a.species, -1);
+            ctx.deaths++;
+        }
+
+        private void moveAgent(Agent a, int nx, int ny) {
+            grid.removeAgent(a.x, a.y);
+            a.x = nx;
+            a.y = ny;
+            grid.putAgent(nx, ny, a.id, a.species);
+        }
+
+        private void performMove(Agent a, TickScratch ctx) {
+            int nx = wrapX(a.x + a.dir.dx);
+            int ny = wrapY(a.y + a.dir.dy);
+            Agent other = agentAt(nx, ny);
+
+            if (other != null) {
+                if (a.species == Species.CARNIVORE && other.species == Species.HERBIVORE) {
+                    killAgent(other, ctx);
+                    ctx.kills++;
+                    moveAgent(a, nx, ny);
+                    a.energy = Math.min(a.maxEnergy, a.energy + 2 * ENERGY_UNIT);
+                }
+                return;
+            }
+
+            moveAgent(a, nx, ny);
+
+            if (a.species == Species.HERBIVORE && grid.hasPlant(nx, ny)) {
+                grid.clearPlant(nx, ny);
+                ctx.plantDelta--;
+                a.energy = Math.min(a.maxEnergy, a.energy + ENERGY_UNIT);
+            }
+        }
+
+        private void performEat(Agent a, TickScratch ctx) {
+            int nx = wrapX(a.x + a.dir.dx);
+            int ny = wrapY(a.y + a.dir.dy);
+            Agent other = agentAt(nx, ny);
+
+            if (a.species == Species.HERBIVORE) {
+                if (grid.hasPlant(nx, ny) && other == null) {
+                    grid.clearPlant(nx, ny);
+                    ctx.plantDelta--;
+                    a.energy = Math.min(a.maxEnergy, a.energy + ENERGY_UNIT);
+                }
+            } else {
+                if (other != null && other.species == Species.HERBIVORE) {
+                    killAgent(other, ctx);
+                    ctx.kills++;
+                    moveAgent(a, nx, ny);
+                    a.energy = Math.min(a.maxEnergy, a.energy + 2 * ENERGY_UNIT);
+                }
+            }
+        }
+
+        private void maybeReproduce(Agent parent, TickScratch ctx) {
+            int[] free = ctx.freeNeighbours;
+            int freeCount = 0;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    if (dx == 0 && dy == 0) continue;
+                    if (grid.agentId(wrapX(parent.x + dx), wrapY(parent.y + dy)) == Grid.EMPTY) {
+                        free[freeCount++] = (dy + 1) * 3 + dx + 1;
+                    }
+                }
+            }
+            if (freeCount == 0) return;
+
+            int pos = free[ctx.rnd.nextInt(freeCount)];
+            int cx = wrapX(parent.x + pos % 3 - 1);
+            int cy = wrapY(parent.y + pos / 3 - 1);
+
+            int childEnergy = parent.energy / 2;
+            parent.energy = parent.energy - childEnergy;
+
+            if (childEnergy <= 0) return;
+
+            NeuralNetwork childBrain = parent.brain.copyWithMutation(ctx.rnd, config.mutationStd, config.mutationRate);
+            Agent child = ctx.newAgent(
+                    parent.species,
+                    cx,
+                    cy,
+                    Direction.VALUES[ctx.rnd.nextInt(Direction.VALUES.length)],
+                    childEnergy,
+                    parent.maxEnergy,
+                    childBrain
+            );
+            register(child, ctx);
+            grid.putAgent(cx, cy, child.id, child.species);
+            ctx.newborns.add(child);
+            ctx.countAgent(child.species, 1);
+            ctx.births++;
+        }
+
+        private void growPlants(int rowFrom, int rowTo, TickScratch ctx) {
+            if (config.plantGrowth == PlantGrowth.SKIP && config.plantGrowChance < 1) {
+                growPlantsSkipping(rowFrom, rowTo, ctx);
+                return;
+            }
+            // A row word of 64 cells at a time: its free cells are one mask, rolled for in
+            // ascending order as a scan cell by cell would, and the new plants one write
+            RandomGenerator rnd = ctx.rnd;
+            double p = config.plantGrowChance;
+            int grown = 0;
+            for (int y = rowFrom; y < rowTo; y++) {
+                for (int cx = 0, n = grid.chunkColumns(); cx < n; cx++) {
+                    long plantBits = grid.plantWord(cx, y);
+                    long free = ~(plantBits | grid.agentWord(cx, y)) & grid.columnMask(cx);
+                    long fresh = 0;
+                    for (; free != 0; free &= free - 1) {
+                        if (rnd.nextDouble() < p) fresh |= free & -free;
+                    }
+                    if (fresh != 0) {
+                        grid.setPlantWord(cx, y, plantBits | fresh);
+                        grown += Long.bitCount(fresh);
+                    }
+                }
+            }
+            ctx.plantDelta += grown;
+        }
+
+        /**
+         * Same distribution as the scan: every cell gets an independent trial with
+         * probability plantGrowChance, but only successes are visited. The gap to the
+         * next success is geometric, so the cost is proportional to the number of
+         * growth events. A success on an occupied cell is dropped, exactly as the
+         * scan never rolls for such cells. Successes are gathered per row word and
+         * checked and written as one.
+         */
+        private void growPlantsSkipping(int rowFrom, int rowTo, TickScratch ctx) {
+            double p = config.plantGrowChance;
+            if (p <= 0) return;
+            RandomGenerator rnd = ctx.rnd;
+            int grown = 0;
+            double logFail = Math.log1p(-p);
+            long end = (long) (rowTo - rowFrom) * width;
+            long i = -1;  // cell offset from the start of row rowFrom
+            int wordX = 0, wordY = 0;
+            long hits = 0;  // successes in the row word at (wordX, wordY)
+            while (true) {
+                // Compared before adding: a skip for a tiny chance may not fit in a long
+                long skip = (long) (Math.log(1.0 - rnd.nextDouble()) / logFail);
+                if (skip >= end - 1 - i) break;
+                i += 1 + skip;
+                int x = (int) (i % width);
+                int y = rowFrom + (int) (i / width);
+                if (y != wordY || x >>> Grid.CHUNK_SHIFT != wordX) {
+                    if (hits != 0) grown += growWord(wordX, wordY, hits);
+                    wordX = x >>> Grid.CHUNK_SHIFT;
+                    wordY = y;
+                    hits = 0;
+                }
+                hits |= 1L << x;
+            }
+            if (hits != 0) grown += growWord(wordX, wordY, hits);
+            ctx.plantDelta += grown;
+        }
+
+        // Plants the free cells among hits in row word (cx, y); returns how many
+        private int growWord(int cx, int y, long hits) {
+            long plantBits = grid.plantWord(cx, y);
+            long fresh = hits & ~(plantBits | grid.agentWord(cx, y));
+            if (fresh != 0) grid.setPlantWord(cx, y, plantBits | fresh);
+            return Long.bitCount(fresh);
+        }
+
+        /**
+         * Fills in with the SensorLayout's inputs: per area the density of plants, herbivores
+         * and carnivores, then energy and bias. Every area is counted with Grid.countRect,
+         * so wide areas cost a popcount per row instead of a lookup per cell.
+         */
+        private void buildInputs(Agent a, double[] in) {
+            SensorLayout.Area[] areas = sensors.areas;
+            int k = 0;
+            for (SensorLayout.Area area : areas) {
+                k = putCounts(sense(a, area), area, in, k);
+            }
+            in[k++] = a.energyNormalized();
+            in[k] = 1.0; // bias input
+        }
+
+        // Packed Grid.countRect counts of one area around a, without a itself
+        private long sense(Agent a, SensorLayout.Area area) {
+            return sense(a.x, a.y, a.dir, a.species, area);
+        }
+
+        private long sense(int x, int y, Direction d, Species species, SensorLayout.Area area) {
+            // Right of the heading (dx, dy) is (-dy, dx); a vertical heading puts depth along y
+            int cx = x + area.ahead() * d.dx - area.right() * d.dy;
+            int cy = y + area.ahead() * d.dy + area.right() * d.dx;
+            int w = d.dx == 0 ? area.breadth() : area.depth();
+            int h = d.dx == 0 ? area.depth() : area.breadth();
+            long counts = grid.countRect(cx - w / 2, cy - h / 2, w, h);
+            if (area.coversSelf()) {
+                counts -= 1L << (species == Species.HERBIVORE ? 21 : 42);
+            }
+            return counts;
+        }
+
+        private static int putCounts(long counts, SensorLayout.Area area, double[] in, int k) {
+            double cells = area.cells();
+            in[k++] = (counts & 0x1FFFFF) / cells;
+            in[k++] = (counts >>> 21 & 0x1FFFFF) / cells;
+            in[k++] = (counts >>> 42) / cells;
+            return k;
+        }
+
+        /**
+         * Hash of the occupied cells (plants, agents and brains) and their positions, in
+         * chunk order; equal for identical worlds. Unallocated chunks are skipped.
+         */
+        long stateHash() {
+            long h = 1;
+            for (int c = 0, n = grid.chunkCount(); c < n; c++) {
+                if (!grid.isAllocated(c)) continue;
+                int x0 = grid.chunkX(c);
+                int y0 = grid.chunkY(c);
+                for (int r = 0; r < Grid.CHUNK; r++) {
+                    int y = y0 + r;
+                    for (long bits = grid.occupied(c, r); bits != 0; bits &= bits - 1) {
+                        int x = x0 + Long.numberOfTrailingZeros(bits);
+                        boolean plant = grid.hasPlant(x, y);
+                        h = 31 * h + (long) y * width + x;
+                        h = 31 * h + (plant ? 1 : 0);
+                        if (table != null) {
+                            int rec = recordAt(x, y);
+                            if (rec >= 0) {
+                                h = 31 * h + table.species(rec).ordinal();
+                                h = 31 * h + table.dir(rec).ordinal();
+                                h = 31 * h + table.energy(rec);
+                                h = 31 * h + table.genomeHash(table.genome(rec));
+                            }
+                            continue;
+                        }
+                        Agent a = agentAt(x, y);
+                        if (a != null) {
+                            h = 31 * h + a.species.ordinal();
+                            h = 31 * h + a.dir.ordinal();
+                            h = 31 * h + a.energy;
+                            h = 31 * h + a.brain.hash();
+                        }
+                    }
+                }
+            }
+            return h;
+        }
+
+        int countAgentsOfType(Species s) {
+            return s == Species.HERBIVORE ? herbivores : carnivores;
+        }
+
+        long countPlants() {
+            return plants;
+        }
+    }
+
+    /** Steps the stripes of one phase (every other stripe) on a ForkJoinPool. */
+    private static class PhaseTask extends RecursiveAction {
+        private final TickScratch[] stripes;
+        private final int first;     // the phase's first stripe; the others follow every second stripe
+        private final int from, to;  // indices among the phase's stripes
+        private final Consumer<TickScratch> body;
+
+        PhaseTask(TickScratch[] stripes, int first, int from, int to, Consumer<TickScratch> body) {
+            this.stripes = stripes;
+            this.first = first;
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                body.accept(stripes[first + 2 * from]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PhaseTask(stripes, first, from, mid, body),
+                    new PhaseTask(stripes, first, mid, to, body));
+        }
+    }
+
+    // ==== INSTRUMENTATION ====
+
+    private enum StepPhase {
+        SHUFFLE,  // agent order: shuffle, or stripe buckets in the partitioned step
+        AGENTS,   // upkeep, sensing, decisions and actions
+        MERGE,    // dead agents out, newborns in
+        PLANTS;   // plant growth
+
+        static final StepPhase[] VALUES = values();
+    }
+
+    /**
+     * Time and allocation of each StepPhase, for the last step and in total, plus a
+     * rolling ticks/sec figure. Costs a few clock and allocation counter reads per
+     * step, so it is always on. Allocations are those of the stepping thread: the
+     * workers of the partitioned step are not counted.
+     */
+    private static final class StepProfile {
+        private static final ThreadMXBean THREADS =
+                ManagementFactory.getThreadMXBean();
+        private static final long RATE_BUCKET_NANOS = 250_000_000L;  // ticks/sec over 4 buckets = 1 s
+
+        final long[] lastNanos = new long[StepPhase.VALUES.length];
+        final long[] lastBytes = new long[StepPhase.VALUES.length];
+        final long[] totalNanos = new long[StepPhase.VALUES.length];
+        final long[] totalBytes = new long[StepPhase.VALUES.length];
+        long steps;
+        private long markNanos, markBytes;
+
+        private final long[] rateBuckets = new long[4];
+        private int rateBucket;
+        private long rateBucketStart = System.nanoTime();
+        private volatile long lastStepEnd;
+        private volatile double ticksPerSecond;
+
+        // Bytes allocated by the current thread, or -1 if the JVM cannot tell
+        static long allocatedBytes() {
+            if (THREADS instanceof com.sun.management.ThreadMXBean mx && mx.isThreadAllocatedMemorySupported()) {
+                return mx.getCurrentThreadAllocatedBytes();
+            }
+            return -1;
+        }
+
+        void begin() {
+            markNanos = System.nanoTime();
+            markBytes = allocatedBytes();
+        }
+
+        void end(StepPhase phase) {
+            long now = System.nanoTime();
+            long bytes = allocatedBytes();
+            int p = phase.ordinal();
+            lastNanos[p] = now - markNanos;
+            lastBytes[p] = bytes - markBytes;
+            totalNanos[p] += lastNanos[p];
+            totalBytes[p] += lastBytes[p];
+            markNanos = now;
+            markBytes = bytes;
+        }
+
+        void endStep() {
+            steps++;
+            long now = markNanos;
+            while (now - rateBucketStart >= RATE_BUCKET_NANOS) {
+                long sum = 0;
+                for (long count : rateBuckets) sum += count;
+                ticksPerSecond = sum * 1e9 / (RATE_BUCKET_NANOS * rateBuckets.length);
+                rateBucket = (rateBucket + 1) % rateBuckets.length;
+                rateBuckets[rateBucket] = 0;
+                rateBucketStart += RATE_BUCKET_NANOS;
+                if (now - rateBucketStart >= RATE_BUCKET_NANOS * rateBuckets.length) {
+                    // Long pause: start over instead of rolling through empty buckets
+                    Arrays.fill(rateBuckets, 0);
+                    rateBucketStart = now;
+                }
+            }
+            rateBuckets[rateBucket]++;
+            lastStepEnd = now;
+        }
+
+        /** Steps per second over the last second; 0 once no step ended for a second. */
+        double ticksPerSecond() {
+            return System.nanoTime() - lastStepEnd > RATE_BUCKET_NANOS * rateBuckets.length ? 0 : ticksPerSecond;
+        }
+
+        long lastStepNanos() {
+            long sum = 0;
+            for (long n : lastNanos) sum += n;
+            return sum;
+        }
+
+        void reset() {
+            Arrays.fill(totalNanos, 0);
+            Arrays.fill(totalBytes, 0);
+            steps = 0;
+        }
+
+        /** One line: share of step time and bytes per step of each phase. */
+        String summary() {
+            long all = 0;
+            for (long n : totalNanos) all += n;
+            StringBuilder sb = new StringBuilder();
+            for (StepPhase p : StepPhase.VALUES) {
+                if (!sb.isEmpty()) sb.append(", ");
+                sb.append(String.format("%s %.1f%% (%.0f B/step)", p.name().toLowerCase(),
+                        100.0 * totalNanos[p.ordinal()] / Math.max(all, 1),
+                        totalBytes[p.ordinal()] / (double) Math.max(steps, 1)));
+            }
+            return sb.toString();
+        }
+    }
+
+    /** JDK Flight Recorder event for one Environment.step(), with the time of each StepPhase. */
+    @Name("alife.Step")
+    @Label("Simulation Step")
+    @Category("Artificial Life")
+    @StackTrace(false)
+    private static final class StepEvent extends Event {
+        @Label("Tick")
+        long tick;
+        @Label("Agents")
+        int agents;
+        @Label("Shuffle")
+        @Timespan
+        long shuffle;
+        @Label("Agent Loop")
+        @Timespan
+        long agentLoop;
+        @Label("Merge")
+        @Timespan
+        long merge;
+        @Label("Plant Growth")
+        @Timespan
+        long plants;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    /** JMX attributes of the running simulation, registered as alife:type=Simulation. */
+    public interface SimulationMBean {
+        long getTick();
+
+        double getTicksPerSecond();
+
+        int getHerbivores();
+
+        int getCarnivores();
+
+        long getPlants();
+
+        long getProfiledSteps();
+
+        double getShuffleNanosPerStep();
+
+        double getAgentsNanosPerStep();
+
+        double getMergeNanosPerStep();
+
+        double getPlantsNanosPerStep();
+
+        double getAllocatedBytesPerStep();
+
+        void resetProfile();
+    }
+
+    private static final class SimulationMonitor implements SimulationMBean {
+        private volatile Environment env;
+
+        private SimulationMonitor(Environment env) {
+            this.env = env;
+        }
+
+        /** Registers a monitor of env with the platform MBean server, replacing an earlier one. */
+        static SimulationMonitor register(Environment env) {
+            SimulationMonitor monitor = new SimulationMonitor(env);
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("alife:type=Simulation");
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(new StandardMBean(monitor, SimulationMBean.class), name);
+            } catch (JMException e) {
+                // The simulation runs without monitoring
+                System.err.println("JMX registration failed: " + e);
+            }
+            return monitor;
+        }
+
+        void attach(Environment env) {
+            this.env = env;
+        }
+
+        // Read from the JMX thread while the simulation steps: values may be one step apart
+        @Override
+        public long getTick() {
+            return env.getTick();
+        }
+
+        @Override
+        public double getTicksPerSecond() {
+            return env.profile().ticksPerSecond();
+        }
+
+        @Override
+        public int getHerbivores() {
+            return env.countAgentsOfType(Species.HERBIVORE);
+        }
+
+        @Override
+        public int getCarnivores() {
+            return env.countAgentsOfType(Species.CARNIVORE);
+        }
+
+        @Override
+        public long getPlants() {
+            return env.countPlants();
+        }
+
+        @Override
+        public long getProfiledSteps() {
+            return env.profile().steps;
+        }
+
+        @Override
+        public double getShuffleNanosPerStep() {
+            return perStep(env.profile().totalNanos, StepPhase.SHUFFLE);
+        }
+
+        @Override
+        public double getAgentsNanosPerStep() {
+            return perStep(env.profile().totalNanos, StepPhase.AGENTS);
+        }
+
+        @Override
+        public double getMergeNanosPerStep() {
+            return perStep(env.profile().totalNanos, StepPhase.MERGE);
+        }
+
+        @Override
+        public double getPlantsNanosPerStep() {
+            return perStep(env.profile().totalNanos, StepPhase.PLANTS);
+        }
+
+        @Override
+        public double getAllocatedBytesPerStep() {
+            StepProfile p = env.profile();
+            long sum = 0;
+            for (long b : p.totalBytes) sum += b;
+            return sum / (double) Math.max(p.steps, 1);
+        }
+
+        @Override
+        public void resetProfile() {
+            env.profile().reset();
+        }
+
+        private double perStep(long[] totals, StepPhase phase) {
+            return totals[phase.ordinal()] / (double) Math.max(env.profile().steps, 1);
+        }
+    }
+
+    // ==== SNAPSHOTS & CHECKPOINTS ====
+
+    /**
+     * Everything needed to continue a run: config, counters, id table, plants, agents
+     * (one array per field, in AgentPool order) and the distinct brains. Plants are
+     * kept per grid chunk: the chunks holding any, and their Grid.CHUNK row words each.
+     */
+    private static class EnvironmentState {
+        final SimConfig config;
+        final int width, height;
+        final int agentCount;
+        long tick;
+        int herbivores, carnivores;
+        long plantCount;
+        int lastBirths, lastDeaths, lastKills;
+        int nextId;
+        int[] freeIds;
+        int[] plantChunks;
+        long[] plants;
+        NeuralNetwork[] brains;
+
+        final int[] ids, xs, ys, energy, maxEnergy, brainOf;
+        final byte[] species, dirs;
+
+        EnvironmentState(SimConfig config, int width, int height, int agentCount) {
+            this.config = config;
+            this.width = width;
+            this.height = height;
+            this.agentCount = agentCount;
+            ids = new int[agentCount];
+            xs = new int[agentCount];
+            ys = new int[agentCount];
+            energy = new int[agentCount];
+            maxEnergy = new int[agentCount];
+            brainOf = new int[agentCount];
+            species = new byte[agentCount];
+            dirs = new byte[agentCount];
+        }
+    }
+
+    /**
+     * Binary snapshot file, little-endian: header and config, counters, free ids,
+     * brain parameters, agent columns, plant chunks. Written and read through
+     * memory-mapped windows of the file, so large worlds cost about one sequential
+     * pass over the disk. A file is written next to its target and moved into place,
+     * so a crash mid-write never leaves a truncated snapshot.
+     */
+    private static final class StateFile {
+        private static final int MAGIC = 0x414C4946;  // "ALIF"
+        private static final int VERSION = 5;
+        private static final int WINDOW = 64 << 20;   // bytes mapped at a time
+        private static final int HEADER_BYTES = 4 * 4   // magic, version, brain layout
+                + 14 * 4 + 3 * 8 + 8                      // config, sensor spec length
+                + 8 + 8 + 10 * 4;                         // tick, plant count, counters, section lengths
+
+        private StateFile() {
+        }
+
+        static void write(Path path, EnvironmentState s) throws IOException {
+            int brainCount = s.brains.length;
+            int inputs = SensorLayout.parse(s.config.sensors).inputs();
+            byte[] sensors = s.config.sensors.getBytes(StandardCharsets.US_ASCII);
+            long bytes = HEADER_BYTES
+                    + sensors.length
+                    + 4L * s.freeIds.length
+                    + (4L * NeuralNetwork.paramCount(inputs) + 8) * brainCount
+                    + 26L * s.agentCount
+                    + 4L * s.plantChunks.length
+                    + 8L * s.plants.length;
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedOutput out = new MappedOutput(ch, bytes);
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+                out.putInt(inputs);
+                out.putInt(NN_OUTPUTS);
+
+                SimConfig c = s.config;
+                out.putInt(c.width);
+                out.putInt(c.height);
+                out.putInt(c.initialHerbivores);
+                out.putInt(c.initialCarnivores);
+                out.putInt(c.initialPlants);
+                out.putDouble(c.plantGrowChance);
+                out.putInt(c.baseMaxEnergyHerb);
+                out.putInt(c.baseMaxEnergyCarn);
+                out.putInt(c.initialEnergyHerb);
+                out.putInt(c.initialEnergyCarn);
+                out.putLong(c.seed);
+                out.putInt(c.stepMode.ordinal());
+                out.putInt(c.threads);
+                out.putInt(c.decisionBatch);
+                out.putDouble(c.mutationStd);
+                out.putDouble(c.mutationRate);
+                out.putInt(c.plantGrowth.ordinal());
+                out.putInt(sensors.length);
+                out.putBytes(sensors);
+
+                out.putLong(s.tick);
+                out.putInt(s.herbivores);
+                out.putInt(s.carnivores);
+                out.putLong(s.plantCount);
+                out.putInt(s.lastBirths);
+                out.putInt(s.lastDeaths);
+                out.putInt(s.lastKills);
+                out.putInt(s.nextId);
+                out.putInt(s.freeIds.length);
+                out.putInt(brainCount);
+                out.putInt(s.agentCount);
+                out.putInt(s.plantChunks.length);
+
+                out.putInts(s.freeIds);
+                for (NeuralNetwork brain : s.brains) {
+                    out.putFloats(brain.params);
+                }
+                for (NeuralNetwork brain : s.brains) {
+                    out.putLong(brain.parentId);
+                }
+                out.putInts(s.ids);
+                out.putInts(s.xs);
+                out.putInts(s.ys);
+                out.putInts(s.energy);
+                out.putInts(s.maxEnergy);
+                out.putInts(s.brainOf);
+                out.putBytes(s.species);
+                out.putBytes(s.dirs);
+                out.putInts(s.plantChunks);
+                out.putLongs(s.plants);
+                out.force();
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static EnvironmentState read(Path path) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedInput in = new MappedInput(ch);
+                if (ch.size() < HEADER_BYTES || in.getInt() != MAGIC) {
+                    throw new IOException("Not a simulation snapshot: " + path);
+                }
+                int version = in.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version + ": " + path);
+                }
+                int inputs = in.getInt();
+                if (in.getInt() != NN_OUTPUTS) {
+                    throw new IOException("Snapshot brains have a different layout: " + path);
+                }
+
+                SimConfig c = new SimConfig();
+                c.width = in.getInt();
+                c.height = in.getInt();
+                c.initialHerbivores = in.getInt();
+                c.initialCarnivores = in.getInt();
+                c.initialPlants = in.getInt();
+                c.plantGrowChance = in.getDouble();
+                c.baseMaxEnergyHerb = in.getInt();
+                c.baseMaxEnergyCarn = in.getInt();
+                c.initialEnergyHerb = in.getInt();
+                c.initialEnergyCarn = in.getInt();
+                c.seed = in.getLong();
+                c.stepMode = StepMode.values()[in.getInt()];
+                c.threads = in.getInt();
+                c.decisionBatch = in.getInt();
+                c.mutationStd = in.getDouble();
+                c.mutationRate = in.getDouble();
+                c.plantGrowth = PlantGrowth.values()[in.getInt()];
+                int specLength = in.getInt();
+                if (specLength < 0 || specLength > 4096) {
+                    throw new IOException("Corrupt sensor layout in " + path);
+                }
+                byte[] spec = new byte[specLength];
+                in.getBytes(spec);
+                c.sensors = new String(spec, StandardCharsets.US_ASCII);
+                if (SensorLayout.parse(c.sensors).inputs() != inputs) {
+                    throw new IOException("Snapshot brains have a different layout: " + path);
+                }
+
+                long tick = in.getLong();
+                int herbivores = in.getInt();
+                int carnivores = in.getInt();
+                long plantCount = in.getLong();
+                int lastBirths = in.getInt();
+                int lastDeaths = in.getInt();
+                int lastKills = in.getInt();
+                int nextId = in.getInt();
+                int freeCount = in.getInt();
+                int brainCount = in.getInt();
+                int agentCount = in.getInt();
+                int plantChunks = in.getInt();
+
+                EnvironmentState s = new EnvironmentState(c, c.width, c.height, agentCount);
+                s.tick = tick;
+                s.herbivores = herbivores;
+                s.carnivores = carnivores;
+                s.plantCount = plantCount;
+                s.lastBirths = lastBirths;
+                s.lastDeaths = lastDeaths;
+                s.lastKills = lastKills;
+                s.nextId = nextId;
+                s.freeIds = new int[freeCount];
+                in.getInts(s.freeIds);
+                float[][] params = new float[brainCount][NeuralNetwork.paramCount(inputs)];
+                for (float[] p : params) {
+                    in.getFloats(p);
+                }
+                s.brains = new NeuralNetwork[brainCount];
+                for (int i = 0; i < brainCount; i++) {
+                    s.brains[i] = new NeuralNetwork(params[i], in.getLong());
+                }
+                in.getInts(s.ids);
+                in.getInts(s.xs);
+                in.getInts(s.ys);
+                in.getInts(s.energy);
+                in.getInts(s.maxEnergy);
+                in.getInts(s.brainOf);
+                in.getBytes(s.species);
+                in.getBytes(s.dirs);
+                s.plantChunks = new int[plantChunks];
+                in.getInts(s.plantChunks);
+                s.plants = new long[plantChunks * Grid.CHUNK];
+                in.getLongs(s.plants);
+                return s;
+            }
+        }
+    }
+
+    /** Sequential writes through READ_WRITE mappings of consecutive windows of a file of known length. */
+    private static final class MappedOutput {
+        private final FileChannel channel;
+        private final long length;
+        private MappedByteBuffer buf;
+        private long base;  // file offset of buf
+
+        MappedOutput(FileChannel channel, long length) throws IOException {
+            this.channel = channel;
+            this.length = length;
+            map(0);
+        }
+
+        private void map(long pos) throws IOException {
+            if (buf != null) buf.force();
+            base = pos;
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, pos, Math.min(StateFile.WINDOW, length - pos));
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // Scalars never straddle two windows: remap at the current position instead
+        private void ensure(int n) throws IOException {
+            if (buf.remaining() < n) map(base + buf.position());
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buf.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buf.putLong(v);
+        }
+
+        void putDouble(double v) throws IOException {
+            ensure(8);
+            buf.putDouble(v);
+        }
+
+        void putBytes(byte[] a) throws IOException {
+            for (int off = 0; off < a.length; ) {
+                ensure(1);
+                int n = Math.min(a.length - off, buf.remaining());
+                buf.put(a, off, n);
+                off += n;
+            }
+        }
+
+        void putInts(int[] a) throws IOException {
+            for (int off = 0; off < a.length; ) {
+                ensure(4);
+                int n = Math.min(a.length - off, buf.remaining() / 4);
+                buf.asIntBuffer().put(a, off, n);
+                buf.position(buf.position() + 4 * n);
+                off += n;
+            }
+        }
+
+        void putFloats(float[] a) throws IOException {
+            for (int off = 0; off < a.length; ) {
+                ensure(4);
+                int n = Math.min(a.length - off, buf.remaining() / 4);
+                buf.asFloatBuffer().put(a, off, n);
+                buf.position(buf.position() + 4 * n);
+                off += n;
+            }
+        }
+
+        void putLongs(long[] a) throws IOException {
+            for (int off = 0; off < a.length; ) {
+                ensure(8);
+                int n = Math.min(a.length - off, buf.remaining() / 8);
+                buf.asLongBuffer().put(a, off, n);
+                buf.position(buf.position() + 8 * n);
+                off += n;
+            }
+        }
+
+        void force() {
+            buf.force();
+        }
+    }
+
+    /** Sequential reads through READ_ONLY mappings of consecutive windows of a file. */
+    private static final class MappedInput {
+        private final FileChannel channel;
+        private final long length;
+        private MappedByteBuffer buf;
+        private long base;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.length = channel.size();
+            map(0);
+        }
+
+        private void map(long pos) throws IOException {
+            base = pos;
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(StateFile.WINDOW, length - pos));
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buf.remaining() >= n) return;
+            if (base + buf.position() + n > length) {
+                throw new IOException("Snapshot file is truncated");
+            }
+            map(base + buf.position());
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            return buf.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensure(8);
+            return buf.getLong();
+        }
+
+        double getDouble() throws IOException {
+            ensure(8);
+            return buf.getDouble();
+        }
+
+        void getBytes(byte[] a) throws IOException {
+            for (int off = 0; off < a.length; ) {
+                ensure(1);
+                int n = Math.min(a.length - off, buf.remaining());
+                buf.get(a, off, n);
+                off += n;
+            }
+        }
+
+        void getInts(int[] a) throws IOException {
+            for (int off = 0; off < a.length; ) {
+                ensure(4);
+                int n = Math.min(a.length - off, buf.remaining() / 4);
+                buf.asIntBuffer().get(a, off, n);
+                buf.position(buf.position() + 4 * n);
+                off += n;
+            }
+        }
+
+        void getFloats(float[] a) throws IOException {
+            for (int off = 0; off < a.length; ) {
+                ensure(4);
+                int n = Math.min(a.length - off, buf.remaining() / 4);
+                buf.asFloatBuffer().get(a, off, n);
+                buf.position(buf.position() + 4 * n);
+                off += n;
+            }
+        }
+
+        void getLongs(long[] a) throws IOException {
+            for (int off = 0; off < a.length; ) {
+                ensure(8);
+                int n = Math.min(a.length - off, buf.remaining() / 8);
+                buf.asLongBuffer().get(a, off, n);
+                buf.position(buf.position() + 8 * n);
+                off += n;
+            }
+        }
+    }
+
+    /**
+     * Writes checkpoints on a background thread. The simulation only pays for
+     * captureState(); it waits for the disk only if the previous checkpoint is still
+     * being written, so at most one captured state is held in memory.
+     */
+    private static final class Checkpointer implements AutoCloseable {
+        private final Path path;
+        private final ExecutorService writer =
+                Executors.newSingleThreadExecutor(Thread.ofPlatform().name("checkpoint").daemon().factory());
+        private Future<?> pending;
+        int written;
+        long maxPauseNanos;  // longest stall of the simulation thread: capture plus waiting
+
+        Checkpointer(Path path) {
+            this.path = path;
+        }
+
+        void checkpoint(Environment env) throws IOException {
+            long start = System.nanoTime();
+            await();
+            EnvironmentState state = env.captureState();
+            pending = writer.submit(() -> {
+                StateFile.write(path, state);
+                return null;
+            });
+            written++;
+            maxPauseNanos = Math.max(maxPauseNanos, System.nanoTime() - start);
+        }
+
+        private void await() throws IOException {
+            if (pending == null) return;
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing checkpoint", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Checkpoint to " + path + " failed", e.getCause());
+            } finally {
+                pending = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                await();
+            } finally {
+                writer.shutdown();
+            }
+        }
+    }
+
+    // ==== TELEMETRY ====
+
+    /**
+     * Per-tick time series, written off the simulation thread. Rows are collected
+     * column-wise into batches; full batches go to a writer thread and come back
+     * empty, so recording a tick does not allocate. FILE.csv is written as CSV,
+     * any other name as a columnar binary file, little-endian: int "ALTM", int
+     * version, int column count, column names (short length + UTF-8), then blocks
+     * of int row count followed by each column as that many longs.
+     */
+    private static final class TelemetryWriter implements AutoCloseable {
+        private static final int MAGIC = 0x414C544D;  // "ALTM"
+        private static final int VERSION = 1;
+        private static final int BATCH_ROWS = 4096;
+        private static final int BATCHES = 4;          // bounds memory if the disk falls behind
+
+        private static final class Batch {
+            final long[][] columns;
+            int rows;
+
+            Batch(int columnCount) {
+                columns = new long[columnCount][BATCH_ROWS];
+            }
+        }
+
+        private static final Batch END = new Batch(0);
+
+        private final Path path;
+        private final boolean csv;
+        private final String[] names;
+        private final BlockingQueue<Batch> full = new ArrayBlockingQueue<>(BATCHES + 1);
+        private final BlockingQueue<Batch> empty = new ArrayBlockingQueue<>(BATCHES);
+        private final Thread writer;
+        private volatile IOException failure;
+        private Batch batch;
+        long recordNanos;  // time record() took on the simulation thread
+
+        // Scratch of record()
+        private final int[] energyBins = new int[ENERGY_BINS];
+        private final long[] energySums = new long[Species.values().length];
+        private final int[] actions = new int[ActionType.VALUES.length];
+
+        TelemetryWriter(Path path) {
+            this.path = path;
+            this.csv = path.getFileName().toString().endsWith(".csv");
+            List<String> cols = new ArrayList<>(List.of("tick", "herbivores", "carnivores", "plants",
+                    "births", "deaths", "kills", "energy_herbivores", "energy_carnivores"));
+            for (int i = 0; i < ENERGY_BINS; i++) {
+                cols.add("energy_bin" + i);
+            }
+            for (ActionType t : ActionType.VALUES) {
+                cols.add("action_" + t.name().toLowerCase());
+            }
+            names = cols.toArray(new String[0]);
+            for (int i = 0; i < BATCHES; i++) {
+                empty.add(new Batch(names.length));
+            }
+            batch = empty.poll();
+            writer = Thread.ofPlatform().name("telemetry").daemon().start(this::writeLoop);
+        }
+
+        /** Appends one row for the tick env has just finished. */
+        void record(Environment env) throws IOException {
+            long start = System.nanoTime();
+            Stats st = env.stats();
+            env.lastEnergy(energyBins, energySums);
+            env.lastActions(actions);
+
+            long[][] c = batch.columns;
+            int r = batch.rows;
+            int k = 0;
+            c[k++][r] = st.tick();
+            c[k++][r] = st.herbivores();
+            c[k++][r] = st.carnivores();
+            c[k++][r] = st.plants();
+            c[k++][r] = st.births();
+            c[k++][r] = st.deaths();
+            c[k++][r] = st.kills();
+            c[k++][r] = energySums[Species.HERBIVORE.ordinal()];
+            c[k++][r] = energySums[Species.CARNIVORE.ordinal()];
+            for (int bin : energyBins) {
+                c[k++][r] = bin;
+            }
+            for (int count : actions) {
+                c[k++][r] = count;
+            }
+            if (++batch.rows == BATCH_ROWS) {
+                hand(batch);
+                batch = take();
+            }
+            recordNanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (batch.rows > 0) hand(batch);
+            hand(END);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while closing " + path, e);
+            }
+            if (failure != null) throw failure;
+        }
+
+        private void hand(Batch b) throws IOException {
+            if (failure != null) throw failure;
+            try {
+                full.put(b);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing " + path, e);
+            }
+        }
+
+        private Batch take() throws IOException {
+            try {
+                return empty.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing " + path, e);
+            }
+        }
+
+        // After a failure batches are still recycled, so the simulation never blocks on a dead writer
+        private void writeLoop() {
+            ByteBuffer buf = ByteBuffer.allocateDirect(4 + 8 * BATCH_ROWS * names.length).order(ByteOrder.LITTLE_ENDIAN);
+            StringBuilder line = new StringBuilder();
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeHeader(ch, buf);
+                for (Batch b = full.take(); b != END; b = full.take()) {
+                    try {
+                        if (failure == null) {
+                            if (csv) writeCsv(ch, buf, line, b);
+                            else writeColumns(ch, buf, b);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    b.rows = 0;
+                    empty.put(b);
+                }
+            } catch (IOException e) {
+                failure = e;
+                recycleUntilEnd();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void recycleUntilEnd() {
+            try {
+                for (Batch b = full.take(); b != END; b = full.take()) {
+                    b.rows = 0;
+                    empty.put(b);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void writeHeader(FileChannel ch, ByteBuffer buf) throws IOException {
+            buf.clear();
+            if (csv) {
+                putAscii(buf, String.join(",", names));
+                buf.put((byte) '\n');
+            } else {
+                buf.putInt(MAGIC).putInt(VERSION).putInt(names.length);
+                for (String name : names) {
+                    byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+                    buf.putShort((short) utf8.length).put(utf8);
+                }
+            }
+            drainTo(ch, buf);
+        }
+
+        private void writeColumns(FileChannel ch, ByteBuffer buf, Batch b) throws IOException {
+            buf.clear();
+            buf.putInt(b.rows);
+            for (long[] column : b.columns) {
+                buf.asLongBuffer().put(column, 0, b.rows);
+                buf.position(buf.position() + 8 * b.rows);
+            }
+            drainTo(ch, buf);
+        }
+
+        private void writeCsv(FileChannel ch, ByteBuffer buf, StringBuilder line, Batch b) throws IOException {
+            buf.clear();
+            for (int r = 0; r < b.rows; r++) {
+                line.setLength(0);
+                for (int k = 0; k < b.columns.length; k++) {
+                    if (k > 0) line.append(',');
+                    line.append(b.columns[k][r]);
+                }
+                line.append('\n');
+                if (buf.remaining() < line.length()) {
+                    drainTo(ch, buf);
+                    buf.clear();
+                }
+                putAscii(buf, line);
+            }
+            drainTo(ch, buf);
+        }
+
+        private static void putAscii(ByteBuffer buf, CharSequence s) {
+            for (int i = 0; i < s.length(); i++) {
+                buf.put((byte) s.charAt(i));
+            }
+        }
+
+        private static void drainTo(FileChannel ch, ByteBuffer buf) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+    }
+
+    // ==== HEADLESS BATCH RUN ====
+
+    /**
+     * Runs an Environment without any Swing frame, timer or repaint.
+     * Usage: java -cp src Main --headless [--ticks=N] [--report=K] [--size=S | --width=W --height=H] ...
+     * With --restore=FILE the world, tick and config come from a snapshot; simulation
+     * options given on the command line override the stored config (a different --seed
+     * forks the run). With
+     * --checkpoint=FILE the state is saved every --checkpoint-every ticks.
+     * --telemetry=FILE records one row per tick (see TelemetryWriter).
+     */
+    private static class HeadlessRunner {
+        private SimConfig config;
+        private long ticks = 10_000;
+        private long reportEvery = 1_000;
+        private Path restoreFrom;
+        private Path checkpointTo;
+        private long checkpointEvery = 10_000;
+        private Path telemetryTo;
+        private final List<String[]> configOptions = new ArrayList<>();
+        private String[] args = new String[0];
+
+        // Sharded runs (ShardRunner); 0 shards is an ordinary run
+        private int shards;
+        private int shard = -1;
+        private TransportKind transport = TransportKind.LOCAL;
+        private int port = 47100;
+
+        HeadlessRunner(SimConfig config) {
+            this.config = config;
+        }
+
+        static HeadlessRunner fromArgs(String[] args) {
+            HeadlessRunner r = new HeadlessRunner(SimConfig.defaults());
+            r.args = args;
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Expected --key=value, got: " + arg);
+                }
+                String key = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "ticks" -> r.ticks = Long.parseLong(value);
+                    case "report" -> r.reportEvery = Long.parseLong(value);
+                    case "restore" -> r.restoreFrom = Path.of(value);
+                    case "checkpoint" -> r.checkpointTo = Path.of(value);
+                    case "checkpoint-every" -> r.checkpointEvery = Long.parseLong(value);
+                    case "telemetry" -> r.telemetryTo = Path.of(value);
+                    case "shards" -> r.shards = Integer.parseInt(value);
+                    case "shard" -> r.shard = Integer.parseInt(value);
+                    case "transport" -> r.transport = TransportKind.valueOf(value.toUpperCase());
+                    case "port" -> r.port = Integer.parseInt(value);
+                    default -> {
+                        applyConfigOption(r.config, key, value);
+                        r.configOptions.add(new String[]{key, value});
+                    }
+                }
+            }
+            r.config.normalize();
+            if (r.shards > 0 && (r.restoreFrom != null || r.checkpointTo != null || r.telemetryTo != null)) {
+                throw new IllegalArgumentException("--shards runs without --restore, --checkpoint and --telemetry");
+            }
+            if (r.shard >= r.shards) {
+                throw new IllegalArgumentException("--shard=" + r.shard + " needs --shards above it");
+            }
+            return r;
+        }
+
+        private static void applyConfigOption(SimConfig c, String key, String value) {
+            switch (key) {
+                case "size" -> c.width = c.height = Integer.parseInt(value);
+                case "width" -> c.width = Integer.parseInt(value);
+                case "height" -> c.height = Integer.parseInt(value);
+                case "plants" -> c.initialPlants = Integer.parseInt(value);
+                case "herbivores" -> c.initialHerbivores = Integer.parseInt(value);
+                case "carnivores" -> c.initialCarnivores = Integer.parseInt(value);
+                case "plant-chance" -> c.plantGrowChance = Double.parseDouble(value);
+                case "energy-herb" -> c.initialEnergyHerb = Integer.parseInt(value);
+                case "max-energy-herb" -> c.baseMaxEnergyHerb = Integer.parseInt(value);
+                case "energy-carn" -> c.initialEnergyCarn = Integer.parseInt(value);
+                case "max-energy-carn" -> c.baseMaxEnergyCarn = Integer.parseInt(value);
+                case "mode" -> c.stepMode = StepMode.valueOf(value.toUpperCase());
+                case "threads" -> c.threads = Integer.parseInt(value);
+                case "seed" -> c.seed = Long.parseLong(value);
+                case "batch" -> c.decisionBatch = Integer.parseInt(value);
+                case "mutation" -> c.mutationStd = Double.parseDouble(value);
+                case "mutation-rate" -> c.mutationRate = Double.parseDouble(value);
+                case "plant-growth" -> c.plantGrowth = PlantGrowth.valueOf(value.toUpperCase());
+                case "memo" -> c.memoize = Boolean.parseBoolean(value);
+                case "agent-store" -> c.agentStore = AgentStore.valueOf(value.toUpperCase());
+                case "sensors" -> {
+                    SensorLayout.parse(value);
+                    c.sensors = value;
+                }
+                default -> throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+
+        void run(PrintStream out) throws IOException {
+            if (shards > 0) {
+                ShardRunner sharded = new ShardRunner(config, shards, ticks, reportEvery);
+                if (transport == TransportKind.LOCAL) sharded.runLocal(out);
+                else if (shard >= 0) sharded.runSocket(shard, port, out);
+                else sharded.launchSocket(args, port, out);
+                return;
+            }
+            Environment env;
+            if (restoreFrom != null) {
+                EnvironmentState state = StateFile.read(restoreFrom);
+                config = state.config;
+                for (String[] option : configOptions) {
+                    applyConfigOption(config, option[0], option[1]);
+                }
+                config.normalize();
+                env = Environment.restore(state, config);
+                out.println("# restored " + restoreFrom + " at tick " + env.getTick());
+            } else {
+                env = new Environment(config);
+                env.initializeDefaultPopulation();
+            }
+            SimulationMonitor.register(env);
+
+            out.println("# seed=" + config.seed + ", world " + config.width + "x" + config.height);
+            out.println("tick\therbivores\tcarnivores\tplants\tbirths\tdeaths\tkills");
+            long first = env.getTick();
+            report(out, env, first);
+
+            Checkpointer checkpoints = checkpointTo != null && checkpointEvery > 0 ? new Checkpointer(checkpointTo) : null;
+            TelemetryWriter telemetry = telemetryTo != null ? new TelemetryWriter(telemetryTo) : null;
+            long start = System.nanoTime();
+            long allocStart = StepProfile.allocatedBytes();
+            try {
+                for (long tick = first + 1; tick <= first + ticks; tick++) {
+                    env.step();
+                    if (telemetry != null) {
+                        telemetry.record(env);
+                    }
+                    if (reportEvery > 0 && tick % reportEvery == 0) {
+                        report(out, env, tick);
+                    }
+                    if (checkpoints != null && tick % checkpointEvery == 0) {
+                        checkpoints.checkpoint(env);
+                    }
+                }
+            } finally {
+                if (checkpoints != null) checkpoints.close();
+                if (telemetry != null) telemetry.close();
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = StepProfile.allocatedBytes() - allocStart;
+            env.shutdown();
+
+            double seconds = elapsed / 1e9;
+            out.printf("# %d ticks in %.3f s (%.0f ticks/s)%n", ticks, seconds, ticks / Math.max(seconds, 1e-9));
+            if (allocStart >= 0 && ticks > 0) {
+                out.printf("# allocated %.1f bytes/tick%n", allocated / (double) ticks);
+            }
+            out.println("# step phases: " + env.profile().summary());
+            out.printf("# grid chunks allocated: %d of %d%n", env.allocatedChunks(), env.grid.chunkCount());
+            out.printf("# genomes: %d distinct among %d agents, %d created%n",
+                    env.distinctGenomes(), env.agentCount(), env.createdGenomes());
+            double[] memoRates = env.memoRates();
+            if (memoRates != null) {
+                out.printf("# memoized decisions: %.1f%% without sensing, %.1f%% without the brain%n",
+                        100 * memoRates[0], 100 * memoRates[1]);
+            }
+            if (telemetry != null) {
+                out.printf("# telemetry to %s took %.2f%% of the run time%n",
+                        telemetryTo, 100.0 * telemetry.recordNanos / Math.max(elapsed, 1));
+            }
+            if (checkpoints != null) {
+                out.printf("# %d checkpoints to %s, longest pause %.1f ms%n",
+                        checkpoints.written, checkpointTo, checkpoints.maxPauseNanos / 1e6);
+            }
+            out.printf("# state hash %016x%n", env.stateHash());
+        }
+
+        private void report(PrintStream out, Environment env, long tick) {
+            printRow(out, tick, env.stats());
+        }
+
+        static void printRow(PrintStream out, long tick, Stats st) {
+            out.println(tick
+                    + "\t" + st.herbivores()
+                    + "\t" + st.carnivores()
+                    + "\t" + st.plants()
+                    + "\t" + st.births()
+                    + "\t" + st.deaths()
+                    + "\t" + st.kills());
+        }
+    }
+
+    // ==== SHARDING ====
+
+    /**
+     * Ordered messages between the shards of one world: one FIFO per pair of shards,
+     * so two shards that send and receive in the same order always pair up. send()
+     * does not wait for the receiver.
+     */
+    private interface ShardTransport extends AutoCloseable {
+        void send(int shard, byte[] message) throws IOException;
+
+        /** The next message from shard, waiting for it. */
+        byte[] receive(int shard) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private enum TransportKind {
+        LOCAL,  // shards on threads of this JVM, messages through queues
+        SOCKET  // a JVM per shard, messages over TCP on the loopback interface
+    }
+
+    /** Shards on threads of one JVM, for tests and single-host runs without sockets. */
+    private static final class LocalTransport implements ShardTransport {
+        private final List<BlockingQueue<byte[]>> queues;  // from * shards + to
+        private final int shards;
+        private final int index;
+
+        private LocalTransport(List<BlockingQueue<byte[]>> queues, int shards, int index) {
+            this.queues = queues;
+            this.shards = shards;
+            this.index = index;
+        }
+
+        /** One endpoint per shard, all connected. */
+        static LocalTransport[] connect(int shards) {
+            List<BlockingQueue<byte[]>> queues = new ArrayList<>();
+            for (int i = 0; i < shards * shards; i++) {
+                queues.add(new LinkedBlockingQueue<>());
+            }
+            LocalTransport[] endpoints = new LocalTransport[shards];
+            for (int i = 0; i < shards; i++) {
+                endpoints[i] = new LocalTransport(queues, shards, i);
+            }
+            return endpoints;
+        }
+
+        @Override
+        public void send(int shard, byte[] message) {
+            queues.get(index * shards + shard).add(message);
+        }
+
+        @Override
+        public byte[] receive(int shard) throws IOException {
+            try {
+                return queues.get(shard * shards + index).take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for shard " + shard, e);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Shards in separate processes, connected to their ring neighbours over TCP on the
+     * loopback interface: shard i listens on basePort + i and connects to the lower
+     * numbered of its neighbours. A reader thread per connection queues incoming
+     * messages, so a send never waits for the other side to receive.
+     */
+    private static final class SocketTransport implements ShardTransport {
+        private static final byte[] CLOSED = new byte[0];
+        private static final long CONNECT_TIMEOUT_MS = 60_000;
+
+        private final Map<Integer, Socket> sockets = new HashMap<>();
+        private final Map<Integer, DataOutputStream> outputs = new HashMap<>();
+        private final Map<Integer, BlockingQueue<byte[]>> inboxes = new HashMap<>();
+
+        static SocketTransport connect(int index, int shards, int basePort) throws IOException {
+            SocketTransport t = new SocketTransport();
+            Set<Integer> neighbours = new HashSet<>(List.of((index + 1) % shards, (index - 1 + shards) % shards));
+            neighbours.remove(index);
+            InetAddress host = InetAddress.getLoopbackAddress();
+            try (ServerSocket server = new ServerSocket(basePort + index, shards, host)) {
+                for (int j : neighbours) {
+                    if (j < index) t.attach(j, connectWithRetry(host, basePort + j, index));
+                }
+                for (int j : neighbours) {
+                    if (j < index) continue;
+                    Socket s = server.accept();
+                    t.attach(new DataInputStream(s.getInputStream()).readInt(), s);
+                }
+            } catch (IOException e) {
+                t.close();
+                throw e;
+            }
+            return t;
+        }
+
+        // The other shard's process may still be starting
+        private static Socket connectWithRetry(InetAddress host, int port, int index) throws IOException {
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+            while (true) {
+                try {
+                    Socket s = new Socket(host, port);
+                    new DataOutputStream(s.getOutputStream()).writeInt(index);
+                    return s;
+                } catch (ConnectException e) {
+                    if (System.currentTimeMillis() > deadline) throw e;
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while connecting to port " + port, ie);
+                    }
+                }
+            }
+        }
+
+        private void attach(int shard, Socket s) throws IOException {
+            s.setTcpNoDelay(true);
+            sockets.put(shard, s);
+            outputs.put(shard, new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16)));
+            BlockingQueue<byte[]> inbox = new LinkedBlockingQueue<>();
+            inboxes.put(shard, inbox);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+            Thread.ofPlatform().daemon().name("shard-" + shard + "-reader").start(() -> {
+                try {
+                    while (true) {
+                        byte[] message = new byte[in.readInt()];
+                        in.readFully(message);
+                        inbox.add(message);
+                    }
+                } catch (IOException e) {
+                    inbox.add(CLOSED);
+                }
+            });
+        }
+
+        @Override
+        public void send(int shard, byte[] message) throws IOException {
+            DataOutputStream out = outputs.get(shard);
+            out.writeInt(message.length);
+            out.write(message);
+            out.flush();
+        }
+
+        @Override
+        public byte[] receive(int shard) throws IOException {
+            try {
+                byte[] message = inboxes.get(shard).take();
+                if (message == CLOSED) {
+                    inboxes.get(shard).add(CLOSED);
+                    throw new IOException("Shard " + shard + " closed its connection");
+                }
+                return message;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for shard " + shard, e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (Socket s : sockets.values()) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    /** One shard's place in the ring of shards: its neighbours and the transport to them. */
+    private static final class ShardPeer {
+        final int index;
+        final int count;
+        final int up, down;  // shards owning the rows above and below, on the torus
+        private final ShardTransport transport;
+
+        ShardPeer(int index, int count, ShardTransport transport) {
+            this.index = index;
+            this.count = count;
+            this.up = (index - 1 + count) % count;
+            this.down = (index + 1) % count;
+            this.transport = transport;
+        }
+
+        /**
+         * Sends toDown to the shard below and toUp to the shard above, and returns what
+         * they sent this shard: {from above, from below}. With two shards both are the
+         * same shard, and the fixed order tells the messages apart.
+         */
+        byte[][] exchange(byte[] toDown, byte[] toUp) throws IOException {
+            transport.send(down, toDown);
+            transport.send(up, toUp);
+            byte[] fromUp = transport.receive(up);
+            byte[] fromDown = transport.receive(down);
+            return new byte[][]{fromUp, fromDown};
+        }
+
+        /** Element-wise sums of values over all shards, passed up the ring; on shard 0 only, null elsewhere. */
+        long[] sum(long[] values) throws IOException {
+            long[] total = values.clone();
+            if (index < count - 1) {
+                ByteBuffer in = ByteBuffer.wrap(transport.receive(down));
+                for (int i = 0; i < total.length; i++) {
+                    total[i] += in.getLong();
+                }
+            }
+            if (index == 0) return total;
+            MessageBuilder m = new MessageBuilder();
+            for (long v : total) {
+                m.putLong(v);
+            }
+            transport.send(up, m.toBytes());
+            return null;
+        }
+    }
+
+    /** A growable big-endian message, read back with ByteBuffer.wrap(). */
+    private static final class MessageBuilder {
+        private ByteBuffer buf = ByteBuffer.allocate(256);
+
+        void putInt(int v) {
+            ensure(4);
+            buf.putInt(v);
+        }
+
+        void putLong(long v) {
+            ensure(8);
+            buf.putLong(v);
+        }
+
+        void putFloat(float v) {
+            ensure(4);
+            buf.putFloat(v);
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(buf.array(), buf.position());
+        }
+
+        private void ensure(int bytes) {
+            if (buf.remaining() >= bytes) return;
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes));
+            grown.put(buf.array(), 0, buf.position());
+            buf = grown;
+        }
+    }
+
+    /**
+     * Runs one world split into horizontal bands of stripes, one per shard, each an
+     * Environment of its own that only holds its band plus, for a phase at a time, a
+     * few rows of its neighbours (Environment.stepSharded). Every split of a world runs
+     * the same simulation: --shards=1 and --shards=4 print the same numbers, though not
+     * those of an unsharded run, whose agents act in a different order.
+     * With the local transport all shards run on threads of this JVM. With the socket
+     * transport each runs in a JVM of its own: without --shard this process runs shard 0
+     * and starts the others as child processes; with --shard=I it runs shard I alone,
+     * for shards started by hand. Shard 0 prints the report, summed over all shards.
+     */
+    private static class ShardRunner {
+        private final SimConfig config;
+        private final int shards;
+        private final long ticks;
+        private final long reportEvery;
+
+        ShardRunner(SimConfig config, int shards, long ticks, long reportEvery) {
+            this.config = config.copy();
+            this.config.stepMode = StepMode.PARTITIONED;
+            this.shards = shards;
+            this.ticks = ticks;
+            this.reportEvery = reportEvery;
+        }
+
+        void runLocal(PrintStream out) throws IOException {
+            LocalTransport[] transports = LocalTransport.connect(shards);
+            List<Thread> threads = new ArrayList<>();
+            threads.add(Thread.currentThread());
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            // Shards waiting for a failed one would wait forever: the first failure interrupts all
+            Consumer<Exception> fail = e -> {
+                if (failure.compareAndSet(null, e)) threads.forEach(Thread::interrupt);
+            };
+            for (int i = 1; i < shards; i++) {
+                int index = i;
+                threads.add(Thread.ofPlatform().name("shard-" + i).unstarted(() -> {
+                    try {
+                        runShard(index, transports[index], null);
+                    } catch (IOException | RuntimeException e) {
+                        fail.accept(e);
+                    }
+                }));
+            }
+            threads.subList(1, shards).forEach(Thread::start);
+            try {
+                runShard(0, transports[0], out);
+            } catch (IOException | RuntimeException e) {
+                fail.accept(e);
+            }
+            for (Thread t : threads.subList(1, shards)) {
+                while (t.isAlive()) {
+                    try {
+                        t.join();
+                    } catch (InterruptedException e) {
+                        // From a failing shard, whose failure is thrown below
+                    }
+                }
+            }
+            Thread.interrupted();
+            Throwable e = failure.get();
+            if (e instanceof IOException io) throw io;
+            if (e != null) throw (RuntimeException) e;
+        }
+
+        /** Shard index over sockets; shard 0 prints. */
+        void runSocket(int index, int basePort, PrintStream out) throws IOException {
+            try (SocketTransport t = SocketTransport.connect(index, shards, basePort)) {
+                runShard(index, t, index == 0 ? out : null);
+            }
+        }
+
+        /** Runs shard 0 here and the others as child JVMs with the same options plus --shard=I. */
+        void launchSocket(String[] args, int basePort, PrintStream out) throws IOException {
+            List<Process> children = new ArrayList<>();
+            try {
+                for (int i = 1; i < shards; i++) {
+                    List<String> command = new ArrayList<>();
+                    command.add(ProcessHandle.current().info().command().orElse("java"));
+                    command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+                    command.add("-cp");
+                    command.add(System.getProperty("java.class.path"));
+                    command.add(Main.class.getName());
+                    command.addAll(List.of(args));
+                    command.add("--shard=" + i);
+                    children.add(new ProcessBuilder(command)
+                            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                            .redirectError(ProcessBuilder.Redirect.INHERIT)
+                            .start());
+                }
+                runSocket(0, basePort, out);
+                for (int i = 0; i < children.size(); i++) {
+                    int exit = children.get(i).waitFor();
+                    if (exit != 0) throw new IOException("Shard " + (i + 1) + " exited with status " + exit);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the shards", e);
+            } finally {
+                children.forEach(Process::destroy);
+            }
+        }
+
+        // Every shard goes through the same sums in the same order, or the ring would deadlock
+        private void runShard(int index, ShardTransport transport, PrintStream out) throws IOException {
+            ShardPeer peer = new ShardPeer(index, shards, transport);
+            Environment env = new Environment(config);
+            env.joinShards(peer);
+            env.initializeDefaultPopulation();
+            if (out != null) {
+                out.println("# seed=" + config.seed + ", world " + config.width + "x" + config.height
+                        + ", " + shards + " shards of " + env.stripes.count + " stripes");
+                out.println("tick\therbivores\tcarnivores\tplants\tbirths\tdeaths\tkills");
+            }
+            report(out, peer, env);
+
+            long start = System.nanoTime();
+            try {
+                for (long tick = 1; tick <= ticks; tick++) {
+                    env.step();
+                    if (reportEvery > 0 && tick % reportEvery == 0) {
+                        report(out, peer, env);
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            long elapsed = System.nanoTime() - start;
+            env.shutdown();
+
+            long[] total = peer.sum(new long[]{env.agentCount(), env.allocatedChunks(), env.regionHash()});
+            if (out == null) return;
+            double seconds = elapsed / 1e9;
+            out.printf("# %d ticks in %.3f s (%.0f ticks/s)%n", ticks, seconds, ticks / Math.max(seconds, 1e-9));
+            out.println("# step phases (shard 0): " + env.profile().summary());
+            out.printf("# %d agents, grid chunks allocated: %d in all shards, %d chunks per world%n",
+                    total[0], total[1], env.grid.chunkCount());
+            out.printf("# sharded state hash %016x%n", total[2]);
+        }
+
+        private static void report(PrintStream out, ShardPeer peer, Environment env) throws IOException {
+            Stats st = env.stats();
+            long[] total = peer.sum(new long[]{st.herbivores(), st.carnivores(), st.plants(),
+                    st.births(), st.deaths(), st.kills()});
+            if (out == null) return;
+            HeadlessRunner.printRow(out, st.tick(), new Stats(st.tick(), (int) total[0], (int) total[1], total[2],
+                    (int) total[3], (int) total[4], (int) total[5]));
+        }
+    }
+
+    // ==== PARAMETER SWEEPS ====
+
+    /**
+     * Runs many independent Environments for a sweep over SimConfig options on a fixed
+     * pool of worker threads, one run per task, and appends one CSV row of summary
+     * metrics per finished run.
+     * Usage: java -cp src Main --sweep --out=FILE [--vary=KEY:V1,V2,...]... [--replicates=R]
+     *        [--samples=K --vary=KEY:LO..HI ...] [--ticks=N] [--parallel=P] [other --key=value]
+     * --vary lists values of a headless config option; all combinations are run (grid
+     * search). With --samples, K points are drawn uniformly from LO..HI ranges instead
+     * (random search). Replicate r of every point uses the same seed, derived from --seed
+     * and r, so points are compared on common random numbers. Rows already in the output
+     * file are skipped, so rerunning the same command resumes an interrupted sweep.
+     */
+    private static class SweepRunner {
+        private static final String[] METRICS = {"ticks", "final_herbivores", "final_carnivores", "final_plants",
+                "peak_herbivores", "peak_carnivores", "mean_herbivores", "mean_carnivores",
+                "births", "kills", "herbivores_extinct_at", "carnivores_extinct_at", "millis"};
+
+        private record Run(int index, int point, int replicate, long seed, String[] values) {
+        }
+
+        private final SimConfig base = SimConfig.defaults();
+        private final List<String[]> baseOptions = new ArrayList<>();
+        private final List<String> keys = new ArrayList<>();
+        private final List<String> specs = new ArrayList<>();
+        private Path outFile;
+        private long ticks = 10_000;
+        private int replicates = 1;
+        private int samples;
+        private int parallel = Runtime.getRuntime().availableProcessors();
+        private boolean stopOnExtinction = true;
+
+        static SweepRunner fromArgs(String[] args) {
+            SweepRunner r = new SweepRunner();
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Expected --key=value, got: " + arg);
+                }
+                String key = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "out" -> r.outFile = Path.of(value);
+                    case "ticks" -> r.ticks = Long.parseLong(value);
+                    case "replicates" -> r.replicates = Integer.parseInt(value);
+                    case "samples" -> r.samples = Integer.parseInt(value);
+                    case "parallel" -> r.parallel = Integer.parseInt(value);
+                    case "stop-on-extinction" -> r.stopOnExtinction = Boolean.parseBoolean(value);
+                    case "vary" -> {
+                        int colon = value.indexOf(':');
+                        if (colon < 0) {
+                            throw new IllegalArgumentException("Expected --vary=KEY:VALUES, got: " + arg);
+                        }
+                        r.keys.add(value.substring(0, colon));
+                        r.specs.add(value.substring(colon + 1));
+                    }
+                    default -> {
+                        HeadlessRunner.applyConfigOption(r.base, key, value);
+                        r.baseOptions.add(new String[]{key, value});
+                    }
+                }
+            }
+            if (r.outFile == null) {
+                throw new IllegalArgumentException("--sweep needs --out=FILE");
+            }
+            // Without it every start would draw a new base seed and could never resume its file
+            if (r.baseOptions.stream().noneMatch(o -> o[0].equals("seed"))) {
+                throw new IllegalArgumentException("--sweep needs --seed=N");
+            }
+            // Fail on a bad key or value before any run starts
+            for (String[] values : r.points()) {
+                SimConfig c = r.base.copy();
+                for (int k = 0; k < r.keys.size(); k++) {
+                    HeadlessRunner.applyConfigOption(c, r.keys.get(k), values[k]);
+                }
+            }
+            return r;
+        }
+
+        // Every point of the sweep, as one value per varied key
+        private List<String[]> points() {
+            List<String[]> points = new ArrayList<>();
+            int n = keys.size();
+            if (samples > 0) {
+                // Drawn from a stream of the base seed, so a resumed sweep draws the same points
+                SplittableRandom rnd = new SplittableRandom(base.seed ^ 0x5DEECE66DL);
+                for (int p = 0; p < samples; p++) {
+                    String[] values = new String[n];
+                    for (int k = 0; k < n; k++) {
+                        values[k] = sample(specs.get(k), rnd);
+                    }
+                    points.add(values);
+                }
+                return points;
+            }
+            points.add(new String[n]);
+            for (int k = 0; k < n; k++) {
+                List<String[]> next = new ArrayList<>();
+                for (String[] prefix : points) {
+                    for (String v : specs.get(k).split(",")) {
+                        String[] values = prefix.clone();
+                        values[k] = v;
+                        next.add(values);
+                    }
+                }
+                points = next;
+            }
+            return points;
+        }
+
+        // LO..HI: integers if both bounds are, else doubles; a plain list: one of its values
+        private static String sample(String spec, SplittableRandom rnd) {
+            int dots = spec.indexOf("..");
+            if (dots < 0) {
+                String[] values = spec.split(",");
+                return values[rnd.nextInt(values.length)];
+            }
+            String lo = spec.substring(0, dots);
+            String hi = spec.substring(dots + 2);
+            try {
+                return String.valueOf(rnd.nextLong(Long.parseLong(lo), Long.parseLong(hi) + 1));
+            } catch (NumberFormatException e) {
+                double a = Double.parseDouble(lo);
+                double b = Double.parseDouble(hi);
+                return String.valueOf(a + (b - a) * rnd.nextDouble());
+            }
+        }
+
+        private static long replicateSeed(long base, int replicate) {
+            long z = base + (replicate + 1) * 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        private String header() {
+            List<String> cols = new ArrayList<>(List.of("run", "point", "replicate", "seed"));
+            cols.addAll(keys);
+            cols.addAll(List.of(METRICS));
+            return String.join(",", cols);
+        }
+
+        /** Runs every run not yet in the output file; returns false if a run failed. */
+        boolean run(PrintStream out) throws IOException {
+            List<String[]> points = points();
+            List<Run> runs = new ArrayList<>();
+            for (int p = 0; p < points.size(); p++) {
+                for (int rep = 0; rep < replicates; rep++) {
+                    runs.add(new Run(runs.size(), p, rep, replicateSeed(base.seed, rep), points.get(p)));
+                }
+            }
+
+            BitSet done = readDone(runs);
+            List<Run> todo = new ArrayList<>();
+            for (Run run : runs) {
+                if (!done.get(run.index())) todo.add(run);
+            }
+            out.println("# seed=" + base.seed + ", " + runs.size() + " runs, " + (runs.size() - todo.size())
+                    + " already in " + outFile + ", " + parallel + " threads");
+
+            AtomicInteger finished = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            long start = System.nanoTime();
+            try (BufferedWriter csv = Files.newBufferedWriter(outFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND)) {
+                if (Files.size(outFile) == 0) {
+                    csv.write(header());
+                    csv.newLine();
+                    csv.flush();
+                }
+                ExecutorService pool = Executors.newFixedThreadPool(parallel);
+                try {
+                    for (Run run : todo) {
+                        pool.execute(() -> {
+                            try {
+                                String row = runOne(run);
+                                synchronized (csv) {
+                                    csv.write(row);
+                                    csv.newLine();
+                                    csv.flush();
+                                }
+                                int n = finished.incrementAndGet();
+                                if (n % Math.max(1, todo.size() / 20) == 0 || n == todo.size()) {
+                                    out.printf("# %d/%d runs done%n", n, todo.size());
+                                }
+                            } catch (IOException | RuntimeException e) {
+                                failed.incrementAndGet();
+                                System.err.println("# run " + run.index() + " failed: " + e);
+                            }
+                        });
+                    }
+                } finally {
+                    pool.shutdown();
+                    try {
+                        while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                            // a long sweep: keep waiting
+                        }
+                    } catch (InterruptedException e) {
+                        pool.shutdownNow();
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            out.printf("# %d runs in %.1f s, %d failed%n", finished.get(), (System.nanoTime() - start) / 1e9, failed.get());
+            return failed.get() == 0;
+        }
+
+        /**
+         * Run indices already in the output file. A last line cut off by a crash is
+         * dropped; a header of another sweep definition is an error.
+         */
+        private BitSet readDone(List<Run> runs) throws IOException {
+            BitSet done = new BitSet();
+            if (!Files.exists(outFile) || Files.size(outFile) == 0) return done;
+            byte[] bytes = Files.readAllBytes(outFile);
+            int end = bytes.length;
+            while (end > 0 && bytes[end - 1] != '\n') end--;
+            if (end < bytes.length) {
+                try (FileChannel ch = FileChannel.open(outFile, StandardOpenOption.WRITE)) {
+                    ch.truncate(end);
+                }
+            }
+            if (end == 0) return done;
+            String[] lines = new String(bytes, 0, end, StandardCharsets.US_ASCII).split("\n");
+            if (!lines[0].equals(header())) {
+                throw new IOException(outFile + " holds another sweep: " + lines[0]);
+            }
+            for (int i = 1; i < lines.length; i++) {
+                String[] f = lines[i].split(",");
+                int index = Integer.parseInt(f[0]);
+                Run run = index < runs.size() ? runs.get(index) : null;
+                if (run == null || run.seed() != Long.parseLong(f[3])
+                        || !Arrays.equals(run.values(), Arrays.copyOfRange(f, 4, 4 + keys.size()))) {
+                    throw new IOException(outFile + " was written by a sweep with other points or --seed (run "
+                            + index + ")");
+                }
+                done.set(index);
+            }
+            return done;
+        }
+
+        private String runOne(Run run) {
+            long start = System.nanoTime();
+            SimConfig c = base.copy();
+            for (int k = 0; k < keys.size(); k++) {
+                HeadlessRunner.applyConfigOption(c, keys.get(k), run.values()[k]);
+            }
+            c.seed = run.seed();
+            c.normalize();
+
+            Environment env = new Environment(c);
+            env.initializeDefaultPopulation();
+            long peakHerb = env.countAgentsOfType(Species.HERBIVORE);
+            long peakCarn = env.countAgentsOfType(Species.CARNIVORE);
+            long sumHerb = 0, sumCarn = 0, births = 0, kills = 0;
+            long herbExtinct = -1, carnExtinct = -1;
+            long t = 0;
+            try {
+                while (t < ticks) {
+                    env.step();
+                    t++;
+                    Stats st = env.stats();
+                    peakHerb = Math.max(peakHerb, st.herbivores());
+                    peakCarn = Math.max(peakCarn, st.carnivores());
+                    sumHerb += st.herbivores();
+                    sumCarn += st.carnivores();
+                    births += st.births();
+                    kills += st.kills();
+                    if (herbExtinct < 0 && st.herbivores() == 0) herbExtinct = t;
+                    if (carnExtinct < 0 && st.carnivores() == 0) carnExtinct = t;
+                    if (stopOnExtinction && herbExtinct >= 0 && carnExtinct >= 0) break;
+                }
+            } finally {
+                env.shutdown();
+            }
+
+            Stats st = env.stats();
+            StringBuilder row = new StringBuilder();
+            row.append(run.index()).append(',').append(run.point()).append(',').append(run.replicate())
+                    .append(',').append(run.seed());
+            for (String v : run.values()) {
+                row.append(',').append(v);
+            }
+            row.append(',').append(t)
+                    .append(',').append(st.herbivores())
+                    .append(',').append(st.carnivores())
+                    .append(',').append(st.plants())
+                    .append(',').append(peakHerb)
+                    .append(',').append(peakCarn)
+                    .append(',').append(String.format(Locale.ROOT, "%.2f", sumHerb / (double) Math.max(t, 1)))
+                    .append(',').append(String.format(Locale.ROOT, "%.2f", sumCarn / (double) Math.max(t, 1)))
+                    .append(',').append(births)
+                    .append(',').append(kills)
+                    .append(',').append(herbExtinct)
+                    .append(',').append(carnExtinct)
+                    .append(',').append((System.nanoTime() - start) / 1_000_000);
+            return row.toString();
+        }
+    }
+
+    // ==== BENCHMARKS ====
+
+    /**
+     * Benchmarks of the simulation hot paths, parameterized by grid size and population density.
+     * Usage: java -cp src Main --bench [--sizes=100,500] [--densities=0.05,0.2] [--seconds=1]
+     *        [--out=current.tsv] [--compare=baseline.tsv] [--tolerance=0.15]
+     * Prints ns/op, ops/s and bytes allocated per op as TSV; with --compare, exits with
+     * status 1 if any benchmark got slower than the baseline by more than the tolerance.
+     */
+    private static class Benchmarks {
+        private static final int RENDER_MAX_PIXELS = 2048;
+        private static final int ZOOMED_OUT_VIEW = 512;
+
+        // Keeps the JIT from dropping benchmarked work as dead code
+        private static volatile long sink;
+
+        private interface Op {
+            int run();  // performs a batch, returns the number of operations in it
+        }
+
+        private record Result(String name, int size, double density, double nsPerOp, double bytesPerOp) {
+            String key() {
+                return name + "\t" + size + "\t" + density;
+            }
+        }
+
+        private int[] sizes = {100, 500, 1000};
+        private double[] densities = {0.05, 0.2};
+        private double seconds = 1.0;
+        private long seed = 42;
+        private String outFile;
+        private String compareFile;
+        private double tolerance = 0.15;
+
+        static Benchmarks fromArgs(String[] args) {
+            Benchmarks b = new Benchmarks();
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Expected --key=value, got: " + arg);
+                }
+                String key = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "sizes" -> b.sizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    case "densities" -> b.densities = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+                    case "seconds" -> b.seconds = Double.parseDouble(value);
+                    case "seed" -> b.seed = Long.parseLong(value);
+                    case "out" -> b.outFile = value;
+                    case "compare" -> b.compareFile = value;
+                    case "tolerance" -> b.tolerance = Double.parseDouble(value);
+                    default -> throw new IllegalArgumentException("Unknown option: --" + key);
+                }
+            }
+            return b;
+        }
+
+        /** Runs all benchmarks; returns false if a regression against the baseline was found. */
+        boolean run(PrintStream out) throws IOException {
+            List<Result> results = new ArrayList<>();
+            out.println("benchmark\tsize\tdensity\tns_per_op\tops_per_s\tbytes_per_op");
+            for (int size : sizes) {
+                for (double density : densities) {
+                    results.add(print(out, benchStep(size, density)));
+                    results.add(print(out, benchDecide(size, density)));
+                    results.add(print(out, benchDecideBatch(size, density)));
+                    results.add(print(out, benchBuildInputs(size, density)));
+                    results.add(print(out, benchGrowPlants(size, density)));
+                    results.add(print(out, benchReproduce(size, density)));
+                    results.add(print(out, benchPaint(size, density)));
+                    results.add(print(out, benchPaintZoomedOut(size, density)));
+                }
+            }
+
+            if (outFile != null) {
+                List<String> lines = new ArrayList<>();
+                for (Result r : results) {
+                    lines.add(r.key() + "\t" + r.nsPerOp() + "\t" + r.bytesPerOp());
+                }
+                Files.write(Path.of(outFile), lines);
+            }
+            return compareFile == null || compare(out, results);
+        }
+
+        private Result print(PrintStream out, Result r) {
+            out.printf(Locale.ROOT, "%s\t%d\t%.3f\t%.1f\t%.0f\t%.1f%n",
+                    r.name(), r.size(), r.density(), r.nsPerOp(), 1e9 / r.nsPerOp(), r.bytesPerOp());
+            return r;
+        }
+
+        private boolean compare(PrintStream out, List<Result> results) throws IOException {
+            Map<String, Double> baseline = new HashMap<>();
+            for (String line : Files.readAllLines(Path.of(compareFile))) {
+                String[] f = line.split("\t");
+                baseline.put(f[0] + "\t" + f[1] + "\t" + f[2], Double.parseDouble(f[3]));
+            }
+            boolean ok = true;
+            for (Result r : results) {
+                Double before = baseline.get(r.key());
+                if (before != null && r.nsPerOp() > before * (1 + tolerance)) {
+                    out.printf(Locale.ROOT, "# REGRESSION %s size=%d density=%.3f: %.1f -> %.1f ns/op%n",
+                            r.name(), r.size(), r.density(), before, r.nsPerOp());
+                    ok = false;
+                }
+            }
+            return ok;
+        }
+
+        private Environment newEnvironment(int size, double density) {
+            SimConfig c = SimConfig.defaults();
+            c.width = size;
+            c.height = size;
+            int cells = size * size;
+            c.initialHerbivores = (int) (cells * density * 0.8);
+            c.initialCarnivores = (int) (cells * density * 0.2);
+            c.initialPlants = (int) (cells * density);
+            c.seed = seed;
+            c.normalize();
+            Environment env = new Environment(c);
+            env.initializeDefaultPopulation();
+            return env;
+        }
+
+        private Result measure(String name, int size, double density, Op op) {
+            long warmupEnd = System.nanoTime() + (long) (seconds * 0.5e9);
+            while (System.nanoTime() < warmupEnd) {
+                op.run();
+            }
+            long ops = 0;
+            long alloc = StepProfile.allocatedBytes();
+            long start = System.nanoTime();
+            long end = start + (long) (seconds * 1e9);
+            long now;
+            do {
+                ops += op.run();
+                now = System.nanoTime();
+            } while (now < end);
+            alloc = StepProfile.allocatedBytes() - alloc;
+            ops = Math.max(ops, 1);
+            return new Result(name, size, density, (now - start) / (double) ops, alloc / (double) ops);
+        }
+
+        private Result benchStep(int size, double density) {
+            Environment env = newEnvironment(size, density);
+            Result r = measure("step", size, density, () -> {
+                env.step();
+                return 1;
+            });
+            env.shutdown();
+            return r;
+        }
+
+        private Result benchDecide(int size, double density) {
+            Environment env = newEnvironment(size, density);
+            int n = Math.max(1, Math.min(env.agents.size(), 4096));
+            NeuralNetwork[] brains = new NeuralNetwork[n];
+            double[][] inputs = new double[n][env.sensors.inputs()];
+            for (int i = 0; i < n; i++) {
+                Agent a = env.agents.isEmpty() ? null : env.agents.get(i);
+                brains[i] = a != null ? a.brain : new NeuralNetwork(env.sensors.inputs(), env.rnd);
+                if (a != null) env.buildInputs(a, inputs[i]);
+            }
+            return measure("decide", size, density, () -> {
+                long acc = 0;
+                for (int i = 0; i < n; i++) {
+                    acc += brains[i].decide(inputs[i]).ordinal();
+                }
+                sink += acc;
+                return n;
+            });
+        }
+
+        private Result benchDecideBatch(int size, double density) {
+            Environment env = newEnvironment(size, density);
+            int n = Math.max(1, Math.min(env.agents.size(), 4096));
+            NeuralNetwork[] brains = new NeuralNetwork[n];
+            int width = env.sensors.inputs();
+            double[] inputs = new double[n * width];
+            double[] row = new double[width];
+            for (int i = 0; i < n; i++) {
+                Agent a = env.agents.isEmpty() ? null : env.agents.get(i);
+                brains[i] = a != null ? a.brain : new NeuralNetwork(env.sensors.inputs(), env.rnd);
+                if (a != null) env.buildInputs(a, row);
+                System.arraycopy(row, 0, inputs, i * width, width);
+            }
+            double[] sums = new double[NN_OUTPUTS];
+            ActionType[] actions = new ActionType[n];
+            return measure("decideBatch", size, density, () -> {
+                NeuralNetwork.decideBatch(brains, inputs, n, sums, actions);
+                sink += actions[n - 1].ordinal();
+                return n;
+            });
+        }
+
+        private Result benchBuildInputs(int size, double density) {
+            Environment env = newEnvironment(size, density);
+            double[] in = env.scratch.inputs;
+            AgentPool agents = env.agents;
+            return measure("buildInputs", size, density, () -> {
+                double acc = 0;
+                for (int i = 0, n = agents.size(); i < n; i++) {
+                    env.buildInputs(agents.get(i), in);
+                    acc += in[0] + in[4] + in[8];
+                }
+                sink += (long) acc;
+                return Math.max(agents.size(), 1);
+            });
+        }
+
+        private Result benchGrowPlants(int size, double density) {
+            Environment env = newEnvironment(size, density);
+            Grid grid = env.grid;
+            int[] savedChunks = grid.plantChunks();
+            long[] saved = new long[savedChunks.length * Grid.CHUNK];
+            for (int k = 0; k < savedChunks.length; k++) {
+                grid.copyPlantRows(savedChunks[k], saved, k * Grid.CHUNK);
+            }
+            long[] none = new long[Grid.CHUNK];
+            return measure("growPlants", size, density, () -> {
+                // Restore the initial plants so the grid never saturates
+                for (int c = 0; c < grid.chunkCount(); c++) {
+                    if (grid.isAllocated(c)) grid.loadPlantRows(c, none, 0);
+                }
+                for (int k = 0; k < savedChunks.length; k++) {
+                    grid.loadPlantRows(savedChunks[k], saved, k * Grid.CHUNK);
+                }
+                env.growPlants(0, size, env.scratch);
+                return 1;
+            });
+        }
+
+        // Each operation includes undoing the birth, so the world stays the same between batches
+        private Result benchReproduce(int size, double density) {
+            Environment env = newEnvironment(size, density);
+            TickScratch ctx = env.scratch;
+            AgentPool agents = env.agents;
+            int n = Math.min(agents.size(), 4096);
+            int[] energies = new int[n];
+            return measure("maybeReproduce", size, density, () -> {
+                for (int i = 0; i < n; i++) {
+                    Agent a = agents.get(i);
+                    energies[i] = a.energy;
+                    a.energy = a.maxEnergy;
+                    env.maybeReproduce(a, ctx);
+                }
+                for (Agent child : ctx.newborns) {
+                    env.grid.removeAgent(child.x, child.y);
+                    env.release(child, ctx);
+                    ctx.spare.add(child);
+                }
+                ctx.newborns.clear();
+                for (int i = 0; i < n; i++) {
+                    agents.get(i).energy = energies[i];
+                }
+                return Math.max(n, 1);
+            });
+        }
+
+        private Result benchPaint(int size, double density) {
+            Environment env = newEnvironment(size, density);
+            int px = Math.min(size * CELL_SIZE, RENDER_MAX_PIXELS);
+            BufferedImage image = new BufferedImage(px, px, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = image.createGraphics();
+            WorldRenderer renderer = new WorldRenderer();
+            renderer.setViewport(px, px);
+            renderer.update(new SnapshotBuilder(env).build(null));
+            try {
+                // Full redraw of the viewport, the worst case of the dirty-cell renderer
+                return measure("paintComponent", size, density, () -> {
+                    renderer.invalidate();
+                    renderer.paint(g2);
+                    return 1;
+                });
+            } finally {
+                g2.dispose();
+            }
+        }
+
+        private Result benchPaintZoomedOut(int size, double density) {
+            Environment env = newEnvironment(size, density);
+            BufferedImage image = new BufferedImage(ZOOMED_OUT_VIEW, ZOOMED_OUT_VIEW, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = image.createGraphics();
+            WorldRenderer renderer = new WorldRenderer();
+            renderer.setViewport(ZOOMED_OUT_VIEW, ZOOMED_OUT_VIEW);
+            renderer.update(new SnapshotBuilder(env).build(null));
+            renderer.fit();
+            try {
+                // Whole world in a fixed viewport: a heatmap once cells get smaller than a few pixels
+                return measure("paintZoomedOut", size, density, () -> {
+                    renderer.invalidate();
+                    renderer.paint(g2);
+                    return 1;
+                });
+            } finally {
+                g2.dispose();
+            }
+        }
+    }
+
+    // ==== RENDERING PANEL ====
 
     private class SimulationPanel extends JPanel {
+        private final WorldRenderer renderer = new WorldRenderer();
+        private WorldSnapshot statsOnly;  // последний снимок мира, который слишком велик для отрисовки
+        private int dragX, dragY;
+
         SimulationPanel() {
             refreshSize();
             setBackground(Color.BLACK);
+
+            // Колесо мыши - масштаб вокруг курсора, перетаскивание - сдвиг
+            MouseAdapter mouse = new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    dragX = e.getX();
+                    dragY = e.getY();
+                }
+
+                @Override
+                public void mouseDragged(MouseEvent e) {
+                    renderer.panBy(dragX - e.getX(), dragY - e.getY());
+                    dragX = e.getX();
+                    dragY = e.getY();
+                    repaint();
+                }
+
+                @Override
+                public void mouseWheelMoved(MouseWheelEvent e) {
+                    renderer.zoomAt(Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getX(), e.getY());
+                    repaint();
+                }
+
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    if (e.getClickCount() == 2) {
+                        renderer.fit();
+                        repaint();
+                    }
+                }
+            };
+            addMouseListener(mouse);
+            addMouseMotionListener(mouse);
+            addMouseWheelListener(mouse);
         }
 
         void refreshSize() {
-            int s = environment.getSize();
-            setPreferredSize(new Dimension(s * CELL_SIZE, s * CELL_SIZE));
+            long pxWidth = (long) environment.getWidth() * CELL_SIZE;
+            long pxHeight = (long) environment.getHeight() * CELL_SIZE;
+            setPreferredSize(new Dimension((int) Math.min(pxWidth, MAX_VIEW_WIDTH), (int) Math.min(pxHeight, MAX_VIEW_HEIGHT)));
             revalidate();
         }
 
+        void show(WorldSnapshot snapshot) {
+            if (snapshot.isPainted()) {
+                statsOnly = null;
+                renderer.update(snapshot);
+            } else {
+                statsOnly = snapshot;
+            }
+            repaint();
+        }
+
         @Override
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
+            if (statsOnly != null) {
+                g.setColor(Color.LIGHT_GRAY);
+                g.drawString("Мир " + statsOnly.width + "x" + statsOnly.height
+                        + " слишком велик для отрисовки, показываются только счётчики", 10, 20);
+                return;
+            }
+            renderer.setViewport(getWidth(), getHeight());
+            renderer.paint((Graphics2D) g);
+        }
+    }
+
+    /**
+     * Immutable copy of the world as the UI draws it, built on the simulation
+     * thread and handed to the EDT. dirty lists the cells changed since the
+     * previous snapshot; null means everything must be redrawn. Worlds of more
+     * than MAX_PAINTED_CELLS cells get snapshots with stats only.
+     */
+    private static class WorldSnapshot {
+        final int width, height;
+        final Stats stats;
+        final long[] plants;
+        final int[] agents;  // per cell: 0 = empty, else encode(agent)
+        final long[] dirty;
+
+        WorldSnapshot(int width, int height, Stats stats, long[] plants, int[] agents, long[] dirty) {
+            this.width = width;
+            this.height = height;
+            this.stats = stats;
+            this.plants = plants;
+            this.agents = agents;
+            this.dirty = dirty;
+        }
+
+        static boolean isPaintable(int width, int height) {
+            return (long) width * height <= MAX_PAINTED_CELLS;
+        }
 
-            Graphics2D g2 = (Graphics2D) g;
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        boolean isPainted() {
+            return agents != null;
+        }
+
+        static int encode(Agent a) {
+            if (a == null || !a.alive) return 0;
+            return 1 | a.species.ordinal() << 1 | a.dir.ordinal() << 2 | a.energy << 4;
+        }
+
+        boolean hasPlant(int cell) {
+            return (plants[cell >>> 6] & (1L << cell)) != 0;
+        }
+
+        static Species species(int code) {
+            return (code & 2) == 0 ? Species.HERBIVORE : Species.CARNIVORE;
+        }
 
-            int size = environment.getSize();
+        static Direction direction(int code) {
+            return Direction.VALUES[(code >>> 2) & 3];
+        }
 
-            // Draw grid
-            for (int y = 0; y < size; y++) {
-                for (int x = 0; x < size; x++) {
-                    int px = x * CELL_SIZE;
-                    int py = y * CELL_SIZE;
+        static int energy(int code) {
+            return code >>> 4;
+        }
+    }
 
-                    g2.setColor(new Color(230, 230, 230));
-                    g2.fillRect(px, py, CELL_SIZE, CELL_SIZE);
+    /**
+     * Builds WorldSnapshots of one Environment. Keeps a mirror of the published
+     * agent codes and refreshes only cells the Environment reports dirty, so a
+     * snapshot costs two array copies plus the changed cells.
+     * Used only by the thread that steps the Environment.
+     */
+    private static class SnapshotBuilder {
+        private final Environment env;
+        private final int[] agentCodes;  // null: the world is too large to paint
+        private boolean first = true;
+
+        SnapshotBuilder(Environment env) {
+            this.env = env;
+            if (WorldSnapshot.isPaintable(env.getWidth(), env.getHeight())) {
+                this.agentCodes = new int[env.getWidth() * env.getHeight()];
+                env.enableDirtyTracking();
+            } else {
+                this.agentCodes = null;
+            }
+        }
 
-                    g2.setColor(new Color(200, 200, 200));
-                    g2.drawRect(px, py, CELL_SIZE, CELL_SIZE);
+        /** unconsumed: a snapshot the UI never saw, whose changes must be carried over. */
+        WorldSnapshot build(WorldSnapshot unconsumed) {
+            int width = env.getWidth();
+            int height = env.getHeight();
+            if (agentCodes == null) {
+                return new WorldSnapshot(width, height, env.stats(), null, null, null);
+            }
+            long[] dirty;
+            if (first || (unconsumed != null && unconsumed.dirty == null)) {
+                first = false;
+                env.drainDirtyCells(_ -> { });
+                for (int cell = 0; cell < agentCodes.length; cell++) {
+                    agentCodes[cell] = WorldSnapshot.encode(env.agentAt(cell % width, cell / width));
                 }
+                dirty = null;
+            } else {
+                long[] changed = unconsumed != null ? unconsumed.dirty.clone() : new long[(agentCodes.length + 63) >>> 6];
+                env.drainDirtyCells(cell -> {
+                    changed[cell >>> 6] |= 1L << cell;
+                    agentCodes[cell] = WorldSnapshot.encode(env.agentAt(cell % width, cell / width));
+                });
+                dirty = changed;
             }
+            return new WorldSnapshot(width, height, env.stats(), env.copyPlants(), agentCodes.clone(), dirty);
+        }
+    }
 
-            // Draw plants and agents
-            for (int y = 0; y < size; y++) {
-                for (int x = 0; x < size; x++) {
-                    Cell c = environment.grid[y][x];
-                    int px = x * CELL_SIZE;
-                    int py = y * CELL_SIZE;
+    /**
+     * Draws WorldSnapshots into a viewport-sized image with zoom and pan.
+     * Only cells inside the viewport are drawn, so the cost depends on the screen
+     * size, not the world size. Up close cells are drawn individually and, between
+     * frames, only visible cells the snapshot marks as changed are redrawn. Zoomed
+     * out, blocks of cells are drawn as a plant/herbivore/carnivore density heatmap
+     * taken from a DensityPyramid.
+     */
+    private static class WorldRenderer {
+        private static final Color GRID_FILL = new Color(230, 230, 230);
+        private static final Color GRID_LINE = new Color(200, 200, 200);
+        private static final Color PLANT_COLOR = new Color(0, 170, 0);
+        private static final Color HERBIVORE_COLOR = new Color(30, 144, 255);
+        private static final Color CARNIVORE_COLOR = new Color(200, 50, 50);
+        private static final String[] ENERGY_LABELS = new String[4096];
+
+        private static final double MAX_CELL_PX = 64;
+        private static final double DETAIL_MIN_CELL_PX = 6;  // below: density heatmap
+        private static final double LABEL_MIN_CELL_PX = 24;  // below: no energy labels
+        private static final int HEAT_BLOCK_PX = 3;          // minimal on-screen heatmap block
+
+        private final int[] arrowX = new int[3];
+        private final int[] arrowY = new int[3];
+        private BufferedImage frame;
+        private Graphics2D frameGraphics;
+        private Font energyFont;
+        private WorldSnapshot shown;  // snapshot the frame currently shows
+        private DensityPyramid density;
+        private boolean redrawAll = true;
+        private boolean fitPending = true;
+
+        private int viewWidth = 1, viewHeight = 1;
+        private double cellPx = CELL_SIZE;   // zoom: screen pixels per cell
+        private double originX, originY;     // world position (in cells) of the top-left pixel
+
+        void paint(Graphics2D g) {
+            if (redrawAll) {
+                redraw();
+            }
+            if (frame != null) {
+                g.drawImage(frame, 0, 0, null);
+            }
+        }
 
-                    if (c.plant) {
-                        g2.setColor(new Color(0, 170, 0));
-                        int margin = CELL_SIZE / 6;
-                        g2.fillOval(px + margin, py + margin, CELL_SIZE - 2 * margin, CELL_SIZE - 2 * margin);
-                    }
+        /** Forces a full redraw on the next update or paint. */
+        void invalidate() {
+            redrawAll = true;
+        }
 
-                    if (c.agent != null && c.agent.alive) {
-                        Agent a = c.agent;
-                        if (a.species == Species.HERBIVORE) {
-                            g2.setColor(new Color(30, 144, 255));
-                        } else {
-                            g2.setColor(new Color(200, 50, 50));
-                        }
-                        int margin = CELL_SIZE / 8;
-                        g2.fillOval(px + margin, py + margin, CELL_SIZE - 2 * margin, CELL_SIZE - 2 * margin);
-
-                        g2.setColor(Color.WHITE);
-                        int cx = px + CELL_SIZE / 2;
-                        int cy = py + CELL_SIZE / 2;
-                        int r = CELL_SIZE / 3;
-
-                        int dx = a.dir.dx;
-                        int dy = a.dir.dy;
-                        int tipX = cx + dx * r;
-                        int tipY = cy + dy * r;
-                        int ortX = -dy;
-                        int base1X = cx + ortX * (r / 2);
-                        int base1Y = cy + dx * (r / 2);
-                        int base2X = cx - ortX * (r / 2);
-                        int base2Y = cy - dx * (r / 2);
-
-                        Polygon p = new Polygon();
-                        p.addPoint(tipX, tipY);
-                        p.addPoint(base1X, base1Y);
-                        p.addPoint(base2X, base2Y);
-                        g2.fillPolygon(p);
-
-                        g2.setColor(Color.BLACK);
-                        g2.setFont(g2.getFont().deriveFont(Font.BOLD, 10f));
-                        String es = String.valueOf(a.energy);
-                        g2.drawString(es, px + 3, py + CELL_SIZE - 4);
+        void setViewport(int width, int height) {
+            width = Math.max(width, 1);
+            height = Math.max(height, 1);
+            if (frame != null && width == viewWidth && height == viewHeight) return;
+            viewWidth = width;
+            viewHeight = height;
+            if (frameGraphics != null) frameGraphics.dispose();
+            frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            frameGraphics = frame.createGraphics();
+            frameGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            energyFont = frameGraphics.getFont().deriveFont(Font.BOLD, 10f);
+            initialZoom();
+            clampOrigin();
+            redrawAll = true;
+        }
+
+        // A new world starts at full cell size, or fitted if it does not fit the viewport
+        private void initialZoom() {
+            if (!fitPending || frame == null || shown == null) return;
+            fitPending = false;
+            cellPx = CELL_SIZE;
+            originX = originY = 0;
+            if (shown.width * CELL_SIZE > viewWidth || shown.height * CELL_SIZE > viewHeight) fit();
+        }
+
+        /** Zooms so the whole world fits the viewport, never beyond CELL_SIZE. */
+        void fit() {
+            if (shown == null) return;
+            cellPx = Math.min(CELL_SIZE, fitPx());
+            originX = originY = 0;
+            clampOrigin();
+            redrawAll = true;
+        }
+
+        void zoomAt(double factor, int sx, int sy) {
+            if (shown == null) return;
+            double next = Math.max(Math.min(fitPx(), MAX_CELL_PX), Math.min(MAX_CELL_PX, cellPx * factor));
+            // Keep the world point under the cursor in place
+            double wx = originX + sx / cellPx;
+            double wy = originY + sy / cellPx;
+            cellPx = next;
+            originX = wx - sx / cellPx;
+            originY = wy - sy / cellPx;
+            clampOrigin();
+            redrawAll = true;
+        }
+
+        // Cell size at which the whole world just fits the viewport
+        private double fitPx() {
+            return Math.min(viewWidth / (double) shown.width, viewHeight / (double) shown.height);
+        }
+
+        void panBy(int dx, int dy) {
+            originX += dx / cellPx;
+            originY += dy / cellPx;
+            clampOrigin();
+            redrawAll = true;
+        }
+
+        private void clampOrigin() {
+            if (shown == null) return;
+            originX = Math.max(0, Math.min(originX, shown.width - viewWidth / cellPx));
+            originY = Math.max(0, Math.min(originY, shown.height - viewHeight / cellPx));
+        }
+
+        void update(WorldSnapshot snapshot) {
+            WorldSnapshot previous = shown;
+            boolean resized = previous == null || previous.width != snapshot.width || previous.height != snapshot.height;
+            shown = snapshot;
+
+            if (resized || snapshot.dirty == null || density == null) {
+                density = new DensityPyramid(snapshot);
+                if (resized) fitPending = true;
+                initialZoom();
+                clampOrigin();
+                redraw();
+                return;
+            }
+            density.apply(previous, snapshot);
+
+            if (redrawAll || cellPx < DETAIL_MIN_CELL_PX) {
+                redraw();
+                return;
+            }
+
+            // Only changed cells that are visible: scan the dirty words of the visible rows
+            int width = snapshot.width;
+            int x0 = (int) originX;
+            int x1 = Math.min(width, (int) Math.ceil(originX + viewWidth / cellPx));
+            int y0 = (int) originY;
+            int y1 = Math.min(snapshot.height, (int) Math.ceil(originY + viewHeight / cellPx));
+            long[] dirty = snapshot.dirty;
+            for (int y = y0; y < y1; y++) {
+                int from = y * width + x0;
+                int to = y * width + x1;
+                for (int cell = nextSet(dirty, from, to); cell < to; cell = nextSet(dirty, cell + 1, to)) {
+                    drawCell(cell % width, y);
+                }
+            }
+        }
+
+        private static int nextSet(long[] bits, int from, int to) {
+            if (from >= to) return to;
+            int w = from >>> 6;
+            long word = bits[w] & (-1L << from);
+            while (word == 0) {
+                if (++w << 6 >= to) return to;
+                word = bits[w];
+            }
+            return Math.min(to, (w << 6) + Long.numberOfTrailingZeros(word));
+        }
+
+        private void redraw() {
+            if (frame == null || shown == null) return;
+            redrawAll = false;
+            Graphics2D g2 = frameGraphics;
+            g2.setColor(Color.BLACK);
+            g2.fillRect(0, 0, viewWidth, viewHeight);
+
+            if (cellPx < DETAIL_MIN_CELL_PX) {
+                drawHeatmap();
+                return;
+            }
+            int x0 = (int) originX;
+            int x1 = Math.min(shown.width, (int) Math.ceil(originX + viewWidth / cellPx));
+            int y0 = (int) originY;
+            int y1 = Math.min(shown.height, (int) Math.ceil(originY + viewHeight / cellPx));
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    drawCell(x, y);
+                }
+            }
+        }
+
+        private void drawCell(int x, int y) {
+            Graphics2D g2 = frameGraphics;
+            int px = (int) Math.round((x - originX) * cellPx);
+            int py = (int) Math.round((y - originY) * cellPx);
+            // Rounded edges, so neighbouring cells tile without gaps or overlap
+            int cw = (int) Math.round((x + 1 - originX) * cellPx) - px;
+            int ch = (int) Math.round((y + 1 - originY) * cellPx) - py;
+            int cs = Math.min(cw, ch);
+
+            g2.setColor(GRID_FILL);
+            g2.fillRect(px, py, cw, ch);
+            g2.setColor(GRID_LINE);
+            g2.drawLine(px, py, px + cw - 1, py);
+            g2.drawLine(px, py, px, py + ch - 1);
+
+            int cell = y * shown.width + x;
+            if (shown.hasPlant(cell)) {
+                int margin = cs / 6;
+                g2.setColor(PLANT_COLOR);
+                g2.fillOval(px + margin, py + margin, cs - 2 * margin, cs - 2 * margin);
+            }
+
+            int code = shown.agents[cell];
+            if (code != 0) {
+                int margin = cs / 8;
+                g2.setColor(WorldSnapshot.species(code) == Species.HERBIVORE ? HERBIVORE_COLOR : CARNIVORE_COLOR);
+                g2.fillOval(px + margin, py + margin, cs - 2 * margin, cs - 2 * margin);
+
+                g2.setColor(Color.WHITE);
+                int cx = px + cs / 2;
+                int cy = py + cs / 2;
+                int r = cs / 3;
+
+                Direction dir = WorldSnapshot.direction(code);
+                int dx = dir.dx;
+                int dy = dir.dy;
+                int ortX = -dy;
+                arrowX[0] = cx + dx * r;
+                arrowY[0] = cy + dy * r;
+                arrowX[1] = cx + ortX * (r / 2);
+                arrowY[1] = cy + dx * (r / 2);
+                arrowX[2] = cx - ortX * (r / 2);
+                arrowY[2] = cy - dx * (r / 2);
+                g2.fillPolygon(arrowX, arrowY, 3);
+
+                if (cellPx >= LABEL_MIN_CELL_PX) {
+                    g2.setColor(Color.BLACK);
+                    g2.setFont(energyFont);
+                    g2.drawString(energyLabel(WorldSnapshot.energy(code)), px + 3, py + cs - 4);
+                }
+            }
+        }
+
+        // One colour per block of cells: red = carnivores, green = plants, blue = herbivores
+        private void drawHeatmap() {
+            int level = density.levelFor(cellPx, HEAT_BLOCK_PX);
+            int block = 1 << level;
+            int blocksX = density.blocksX(level);
+            int blocksY = density.blocksY(level);
+            int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+
+            int bx0 = (int) originX / block;
+            int by0 = (int) originY / block;
+            int bx1 = Math.min(blocksX, (int) Math.ceil((originX + viewWidth / cellPx) / block));
+            int by1 = Math.min(blocksY, (int) Math.ceil((originY + viewHeight / cellPx) / block));
+            double cellsPerBlock = block * (double) block;
+            for (int by = by0; by < by1; by++) {
+                int py0 = Math.max(0, (int) Math.round((by * block - originY) * cellPx));
+                int py1 = Math.min(viewHeight, (int) Math.round(((by + 1) * block - originY) * cellPx));
+                for (int bx = bx0; bx < bx1; bx++) {
+                    int px0 = Math.max(0, (int) Math.round((bx * block - originX) * cellPx));
+                    int px1 = Math.min(viewWidth, (int) Math.round(((bx + 1) * block - originX) * cellPx));
+                    int i = by * blocksX + bx;
+                    int r = shade(density.carnivores[level][i], cellsPerBlock);
+                    int g = shade(density.plants[level][i], cellsPerBlock);
+                    int b = shade(density.herbivores[level][i], cellsPerBlock);
+                    int rgb = r << 16 | g << 8 | b;
+                    for (int py = py0; py < py1; py++) {
+                        Arrays.fill(pixels, py * viewWidth + px0, py * viewWidth + px1, rgb);
                     }
                 }
             }
         }
+
+        // Square root keeps sparse populations visible
+        private static int shade(int count, double cells) {
+            return count == 0 ? 0 : Math.min(255, 40 + (int) (215 * Math.sqrt(count / cells)));
+        }
+
+        private static String energyLabel(int energy) {
+            if (energy < 0 || energy >= ENERGY_LABELS.length) {
+                return String.valueOf(energy);
+            }
+            String s = ENERGY_LABELS[energy];
+            if (s == null) {
+                s = String.valueOf(energy);
+                ENERGY_LABELS[energy] = s;
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Plant, herbivore and carnivore counts per block of 2^level x 2^level cells,
+     * for every level up to one block covering the world. Level 0 is the cells
+     * themselves and is read from the snapshot. Kept up to date from the cells
+     * each snapshot marks as changed.
+     */
+    private static class DensityPyramid {
+        final int width, height;
+        final int levels;
+        final int[][] plants;
+        final int[][] herbivores;
+        final int[][] carnivores;
+
+        DensityPyramid(WorldSnapshot s) {
+            width = s.width;
+            height = s.height;
+            int n = 1;
+            while ((1 << (n - 1)) < Math.max(width, height)) n++;
+            levels = n;
+            plants = new int[n][];
+            herbivores = new int[n][];
+            carnivores = new int[n][];
+            for (int level = 1; level < n; level++) {
+                int b = blocksX(level) * blocksY(level);
+                plants[level] = new int[b];
+                herbivores[level] = new int[b];
+                carnivores[level] = new int[b];
+            }
+            for (int cell = 0; cell < s.agents.length; cell++) {
+                add(cell, s.hasPlant(cell), s.agents[cell], 1);
+            }
+        }
+
+        int blocksX(int level) {
+            return (width + (1 << level) - 1) >> level;
+        }
+
+        int blocksY(int level) {
+            return (height + (1 << level) - 1) >> level;
+        }
+
+        // Smallest level whose blocks are at least minPx pixels wide on screen
+        int levelFor(double cellPx, int minPx) {
+            int level = 1;
+            while (level < levels - 1 && (1 << level) * cellPx < minPx) level++;
+            return Math.min(level, levels - 1);
+        }
+
+        void apply(WorldSnapshot before, WorldSnapshot after) {
+            long[] dirty = after.dirty;
+            for (int w = 0; w < dirty.length; w++) {
+                for (long word = dirty[w]; word != 0; word &= word - 1) {
+                    int cell = (w << 6) + Long.numberOfTrailingZeros(word);
+                    add(cell, before.hasPlant(cell), before.agents[cell], -1);
+                    add(cell, after.hasPlant(cell), after.agents[cell], 1);
+                }
+            }
+        }
+
+        private void add(int cell, boolean plant, int agentCode, int delta) {
+            if (!plant && agentCode == 0) return;
+            int x = cell % width;
+            int y = cell / width;
+            for (int level = 1; level < levels; level++) {
+                int i = (y >> level) * blocksX(level) + (x >> level);
+                if (plant) plants[level][i] += delta;
+                if (agentCode != 0) {
+                    if (WorldSnapshot.species(agentCode) == Species.HERBIVORE) herbivores[level][i] += delta;
+                    else carnivores[level][i] += delta;
+                }
+            }
+        }
     }
 }